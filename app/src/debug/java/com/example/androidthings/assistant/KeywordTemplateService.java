@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds the keyword templates asset of {@link KeywordSpotter} from recordings of the keywords.
+ *
+ * <p>The recordings are raw 16khz 16bit mono PCM files, one directory per keyword named after
+ * it, each starting with a moment of background before the keyword. Record a few takes of each
+ * keyword in the room of the device, then:
+ *
+ * <pre>
+ * adb push keywords /sdcard/Android/data/com.example.androidthings.assistant/files/
+ * adb shell am startservice -n com.example.androidthings.assistant/.KeywordTemplateService \
+ *     --ef margin 1.1 --ef threshold 0 --ez benchmark true
+ * adb pull /sdcard/Android/data/com.example.androidthings.assistant/files/keyword_templates.bin \
+ *     app/src/main/assets/
+ * </pre>
+ *
+ * Each threshold is {@code margin} times the worst score of its template on the other takes
+ * unless {@code threshold} is positive. {@code --es clips} and {@code --es out} override the
+ * directories. {@code benchmark} then runs the spotter over the takes and logs its frames per
+ * second and the share of a core it needs in real time.
+ */
+public class KeywordTemplateService extends IntentService {
+    private static final String TAG = KeywordTemplateService.class.getSimpleName();
+
+    static final String EXTRA_CLIPS = "clips";
+    static final String EXTRA_OUT = "out";
+    static final String EXTRA_MARGIN = "margin";
+    static final String EXTRA_THRESHOLD = "threshold";
+    static final String EXTRA_BENCHMARK = "benchmark";
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SAMPLE_BLOCK_SIZE = 1024;
+    private static final String DEFAULT_CLIPS = "keywords";
+    private static final String TEMPLATES_FILE = "keyword_templates.bin";
+    // Audio run through the spotter by the benchmark, 60 sec.
+    private static final int BENCHMARK_SAMPLES = 60 * SAMPLE_RATE;
+
+    public KeywordTemplateService() {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(final Intent intent) {
+        final File files = getExternalFilesDir(null);
+        final String clipsPath = intent.getStringExtra(EXTRA_CLIPS);
+        final File clips = clipsPath != null ? new File(clipsPath) : new File(files, DEFAULT_CLIPS);
+        final String outPath = intent.getStringExtra(EXTRA_OUT);
+        final File out = outPath != null ? new File(outPath) : new File(files, TEMPLATES_FILE);
+        final float margin = intent.getFloatExtra(EXTRA_MARGIN, KeywordTemplates.DEFAULT_MARGIN);
+        final float threshold = intent.getFloatExtra(EXTRA_THRESHOLD, 0);
+        try {
+            final List<KeywordSpotter.Template> templates = new ArrayList<>();
+            final List<short[]> recordings = new ArrayList<>();
+            final File[] keywords = clips.listFiles(File::isDirectory);
+            if (keywords == null || keywords.length == 0) {
+                throw new IOException("no keyword directories in " + clips);
+            }
+            Arrays.sort(keywords);
+            for (final File keyword : keywords) {
+                final List<short[]> takes = readTakes(keyword);
+                final List<KeywordSpotter.Template> built = KeywordTemplates.build(
+                        keyword.getName(), takes, SAMPLE_RATE, margin, threshold);
+                for (final KeywordSpotter.Template template : built) {
+                    Log.i(TAG, "template " + keyword.getName() + ": " + template.mFrames.length
+                            + " frames, threshold " + template.mThreshold);
+                }
+                templates.addAll(built);
+                recordings.addAll(takes);
+            }
+            try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(out))) {
+                KeywordTemplates.write(stream, templates);
+            }
+            Log.i(TAG, "wrote " + templates.size() + " keyword templates to " + out);
+            if (intent.getBooleanExtra(EXTRA_BENCHMARK, false)) {
+                benchmark(templates, recordings);
+            }
+        } catch (final IOException | IllegalArgumentException e) {
+            Log.e(TAG, "error building keyword templates from " + clips, e);
+        }
+    }
+
+    private static List<short[]> readTakes(final File keyword) throws IOException {
+        final File[] files = keyword.listFiles(File::isFile);
+        if (files == null) {
+            throw new IOException("cannot list " + keyword);
+        }
+        Arrays.sort(files);
+        final List<short[]> takes = new ArrayList<>(files.length);
+        for (final File file : files) {
+            takes.add(readSamples(file));
+        }
+        return takes;
+    }
+
+    private static short[] readSamples(final File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            final byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int read = in.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            final short[] samples = new short[offset / 2];
+            ByteBuffer.wrap(bytes, 0, offset).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+                    .get(samples);
+            return samples;
+        }
+    }
+
+    /**
+     * Runs the spotter over the takes in capture blocks, as the service does.
+     */
+    private static void benchmark(final List<KeywordSpotter.Template> templates,
+                                  final List<short[]> recordings) {
+        final KeywordSpotter spotter = new KeywordSpotter(SAMPLE_RATE,
+                templates.get(0).mFrames[0].length, templates);
+        final short[] block = new short[SAMPLE_BLOCK_SIZE];
+        int detections = 0;
+        int fill = 0;
+        int processed = 0;
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final long startCpuNanos = Debug.threadCpuTimeNanos();
+        while (processed < BENCHMARK_SAMPLES) {
+            for (final short[] recording : recordings) {
+                for (final short sample : recording) {
+                    block[fill++] = sample;
+                    if (fill == block.length) {
+                        spotter.process(block, fill);
+                        if (spotter.pollDetection() != null) {
+                            detections++;
+                        }
+                        processed += fill;
+                        fill = 0;
+                    }
+                }
+            }
+        }
+        final double seconds = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1e9;
+        final double cpuSeconds = (Debug.threadCpuTimeNanos() - startCpuNanos) / 1e9;
+        final double audioSeconds = (double) processed / SAMPLE_RATE;
+        // 100 frames per second of audio.
+        Log.i(TAG, String.format("keyword spotting benchmark: %d templates, %.0f frames/s, "
+                        + "%.1f%% of a core in real time, %d detections",
+                templates.size(), audioSeconds * 100 / seconds,
+                100 * cpuSeconds / audioSeconds, detections));
+    }
+}
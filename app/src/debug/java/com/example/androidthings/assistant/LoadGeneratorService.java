@@ -0,0 +1,482 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.app.IntentService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Debug;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.google.assistant.embedded.v1alpha1.AudioOut;
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+import com.google.protobuf.ByteString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.okhttp.OkHttpChannelBuilder;
+
+/**
+ * Headless fleet load generator: simulates N virtual devices, each streaming a recorded utterance
+ * in real time to the {@link LoadServerService}, and logs throughput, per-turn latency
+ * percentiles and heap usage per stream.
+ *
+ * <p>The generator and the server run in separate processes and talk HTTP/2 over loopback with
+ * the OkHttp transport of the device, so a shared channel multiplexes every device on one
+ * connection while per-device channels each open their own, with their own flow control. The
+ * heap and allocation figures are those of the generator process only; the server logs its own.
+ *
+ * <pre>
+ * adb shell am startservice -n com.example.androidthings.assistant/.LoadGeneratorService \
+ *     --ei devices 50 --ei turns 10 --ez shared_channel true --es utterance /sdcard/query.raw \
+ *     --es error_code UNAVAILABLE --ei error_after 20 --ef error_rate 0.2 --el hedge_ms 400 \
+ *     --ef stall_rate 0.05 --ei reply_ms 1500 --ei end_of_utterance_ms 3000 --ei port 50051
+ * </pre>
+ *
+ * The utterance is raw 16khz 16bit mono PCM; a synthetic one is used when none is given. The
+ * {@code error_*} extras inject stream failures, which the {@link ReplayingConverseCall} of each
+ * virtual device retries, so the success rate and tail latency under faults are reported.
+ * {@code stall_rate} leaves calls unanswered, which only the first response timeout ends.
+ * {@code reply_ms} sizes the scripted reply and {@code end_of_utterance_ms} is the audio after
+ * which the server ends the utterance before the request stream does, 0 to wait for it.
+ *
+ * <p>{@code --ez codec_benchmark true} instead compares the allocated bytes and throughput of the
+ * {@link ConverseCodec} marshallers with the generated ones for audio frames.
+ */
+public class LoadGeneratorService extends IntentService {
+    private static final String TAG = LoadGeneratorService.class.getSimpleName();
+
+    static final String EXTRA_DEVICES = "devices";
+    static final String EXTRA_TURNS = "turns";
+    static final String EXTRA_SHARED_CHANNEL = "shared_channel";
+    static final String EXTRA_UTTERANCE = "utterance";
+    static final String EXTRA_ERROR_CODE = "error_code";
+    static final String EXTRA_ERROR_AFTER = "error_after";
+    static final String EXTRA_ERROR_RATE = "error_rate";
+    static final String EXTRA_HEDGE_MS = "hedge_ms";
+    static final String EXTRA_STALL_RATE = "stall_rate";
+    static final String EXTRA_REPLY_MS = "reply_ms";
+    static final String EXTRA_END_OF_UTTERANCE_MS = "end_of_utterance_ms";
+    static final String EXTRA_CODEC_BENCHMARK = "codec_benchmark";
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SAMPLE_BLOCK_SIZE = 1024;
+    // Real time duration of one SAMPLE_BLOCK_SIZE block of 16bit mono audio.
+    private static final long BLOCK_PERIOD_NANOS =
+            TimeUnit.SECONDS.toNanos(SAMPLE_BLOCK_SIZE / 2) / SAMPLE_RATE;
+    private static final int SYNTHETIC_UTTERANCE_MS = 2000;
+    private static final long HEAP_SAMPLE_PERIOD_MS = 100;
+    // buffer of 10 sec of sample data at 16khz / 16bit.
+    private static final int CONVERSE_REPLAY_BUFFER_SIZE = SAMPLE_RATE * 2 * 10;
+    private static final int CONVERSE_MAX_ATTEMPTS = 3;
+    // Bounds a turn until its first response, as in the AssistantService.
+    private static final long CONVERSE_FIRST_RESPONSE_TIMEOUT_MS = 30000;
+    private static final long LOAD_SERVER_START_TIMEOUT_MS = 10000;
+    private static final String LOOPBACK_ADDRESS = "127.0.0.1";
+    private static final int CODEC_BENCHMARK_FRAMES = 20000;
+    // One 50ms AUDIO_OUT chunk at 16khz / 16bit, as sent by the local assistant.
+    private static final int CODEC_BENCHMARK_AUDIO_OUT_SIZE = 1600;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final AtomicLong mPeakHeap = new AtomicLong();
+    private final List<Long> mFirstAudioLatenciesNanos = new ArrayList<>();
+    private final List<Long> mTurnLatenciesNanos = new ArrayList<>();
+
+    public LoadGeneratorService() {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(final Intent intent) {
+        if (intent.getBooleanExtra(EXTRA_CODEC_BENCHMARK, false)) {
+            try {
+                benchmarkCodec();
+            } catch (final IOException e) {
+                Log.e(TAG, "codec benchmark failed:", e);
+            }
+            return;
+        }
+        final int devices = intent.getIntExtra(EXTRA_DEVICES, 10);
+        final int turns = intent.getIntExtra(EXTRA_TURNS, 5);
+        final boolean sharedChannel = intent.getBooleanExtra(EXTRA_SHARED_CHANNEL, true);
+        final long hedgeDelayMs = intent.getLongExtra(EXTRA_HEDGE_MS, 0);
+        final int port = intent.getIntExtra(LoadServerService.EXTRA_PORT,
+                LoadServerService.DEFAULT_PORT);
+        final byte[] utterance;
+        try {
+            utterance = loadUtterance(intent.getStringExtra(EXTRA_UTTERANCE));
+        } catch (final IOException e) {
+            Log.e(TAG, "error loading utterance:", e);
+            return;
+        }
+        Log.i(TAG, "simulating " + devices + " devices, " + turns + " turns each, "
+                + (sharedChannel ? "shared" : "per-device") + " channel");
+
+        // The server reads the fault extras from the binding intent.
+        final CountDownLatch connected = new CountDownLatch(1);
+        final ServiceConnection server = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(final ComponentName name, final IBinder service) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onServiceDisconnected(final ComponentName name) {
+                Log.w(TAG, "load server process died");
+            }
+        };
+        if (!bindService(new Intent(this, LoadServerService.class).putExtras(intent), server,
+                Context.BIND_AUTO_CREATE)) {
+            Log.e(TAG, "error binding load server");
+            return;
+        }
+        final ScheduledExecutorService executor =
+                Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+        final List<ManagedChannel> channels = new ArrayList<>();
+        try {
+            if (!connected.await(LOAD_SERVER_START_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "load server did not start");
+                return;
+            }
+            final Runtime runtime = Runtime.getRuntime();
+            runtime.gc();
+            final long baselineHeap = runtime.totalMemory() - runtime.freeMemory();
+            mPeakHeap.set(baselineHeap);
+            executor.scheduleAtFixedRate(() -> {
+                final long used = runtime.totalMemory() - runtime.freeMemory();
+                mPeakHeap.accumulateAndGet(used, Math::max);
+            }, 0, HEAP_SAMPLE_PERIOD_MS, TimeUnit.MILLISECONDS);
+            final long startAllocatedBytes = allocatedBytes();
+
+            final CountDownLatch done = new CountDownLatch(devices);
+            final long startNanos = System.nanoTime();
+            ManagedChannel channel = null;
+            for (int i = 0; i < devices; i++) {
+                if (channel == null || !sharedChannel) {
+                    // One HTTP/2 connection per channel.
+                    channel = OkHttpChannelBuilder.forAddress(LOOPBACK_ADDRESS, port)
+                            .usePlaintext(true)
+                            .build();
+                    channels.add(channel);
+                }
+                new VirtualDevice(EmbeddedAssistantGrpc.newStub(channel), executor, utterance,
+                        turns, hedgeDelayMs, done).startTurn();
+            }
+            done.await();
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            report(devices, elapsedNanos, mPeakHeap.get() - baselineHeap,
+                    allocatedBytes() - startAllocatedBytes);
+        } catch (final InterruptedException e) {
+            Log.e(TAG, "load generation interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            for (final ManagedChannel channel : channels) {
+                channel.shutdownNow();
+            }
+            unbindService(server);
+        }
+    }
+
+    /**
+     * Returns the bytes allocated by this process since it started.
+     */
+    static long allocatedBytes() {
+        return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+    }
+
+    private void report(final int devices, final long elapsedNanos, final long heapGrowth,
+                        final long allocatedBytes) {
+        final double seconds = elapsedNanos / 1e9;
+        final int succeeded = mTurnLatenciesNanos.size();
+        Log.i(TAG, String.format("turns: %d ok, %d failed (%.1f%% success) in %.1f s",
+                succeeded, mErrorCount.get(),
+                100.0 * succeeded / Math.max(1, succeeded + mErrorCount.get()), seconds));
+        Log.i(TAG, String.format("throughput: %.1f requests/s, %.1f KB/s up, %.1f KB/s down",
+                mRequestCount.get() / seconds, mBytesSent.get() / seconds / 1024,
+                mBytesReceived.get() / seconds / 1024));
+        Log.i(TAG, "first audio latency ms: " + percentiles(mFirstAudioLatenciesNanos));
+        Log.i(TAG, "turn latency ms: " + percentiles(mTurnLatenciesNanos));
+        Log.i(TAG, String.format("per stream (client side): %.1f KB peak heap, %.1f KB/s allocated",
+                heapGrowth / 1024.0 / devices, allocatedBytes / seconds / 1024 / devices));
+    }
+
+    /**
+     * Serializes audio_in requests and parses audio_out responses with the generated and the
+     * {@link ConverseCodec} method descriptors, logging allocated bytes and throughput of each.
+     */
+    private void benchmarkCodec() throws IOException {
+        final ByteBuffer audioIn = ByteBuffer.wrap(loadUtterance(null), 0, SAMPLE_BLOCK_SIZE);
+        final byte[] audioOut = ConverseResponse.newBuilder()
+                .setAudioOut(AudioOut.newBuilder().setAudioData(
+                        ByteString.copyFrom(new byte[CODEC_BENCHMARK_AUDIO_OUT_SIZE])))
+                .build()
+                .toByteArray();
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream(2 * SAMPLE_BLOCK_SIZE);
+        final MethodDescriptor<ConverseRequest, ConverseResponse> generated =
+                EmbeddedAssistantGrpc.METHOD_CONVERSE;
+        final MethodDescriptor<ConverseCodec.Request, ConverseCodec.Response> codec =
+                ConverseCodec.METHOD_CONVERSE;
+        // Warm up both paths before measuring.
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean log = pass == 1;
+            benchmark("generated audio_in", log, SAMPLE_BLOCK_SIZE, () ->
+                    drain(generated.streamRequest(ConverseRequests.audioIn(audioIn.duplicate())),
+                            sink));
+            benchmark("codec audio_in", log, SAMPLE_BLOCK_SIZE, () ->
+                    drain(codec.streamRequest(ConverseCodec.Request.audioIn(audioIn.duplicate())),
+                            sink));
+            benchmark("generated audio_out", log, audioOut.length, () -> generated.parseResponse(
+                    new KnownLengthInputStream(audioOut)).getAudioOut().getAudioData().size());
+            benchmark("codec audio_out", log, audioOut.length, () -> codec.parseResponse(
+                    new KnownLengthInputStream(audioOut)).getAudioData().remaining());
+        }
+    }
+
+    private interface BenchmarkOp {
+        int run() throws IOException;
+    }
+
+    private static void benchmark(final String name, final boolean log, final int frameSize,
+                                  final BenchmarkOp op) throws IOException {
+        // Process wide, this thread is the only one allocating while it runs.
+        final long startAllocatedBytes = allocatedBytes();
+        final long startNanos = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < CODEC_BENCHMARK_FRAMES; i++) {
+            checksum += op.run();
+        }
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+        final long allocated = allocatedBytes() - startAllocatedBytes;
+        if (log) {
+            Log.i(TAG, String.format("%s: %.0f frames/s, %.1f MB/s, %.0f bytes allocated per "
+                            + "frame (checksum %d)", name,
+                    CODEC_BENCHMARK_FRAMES / seconds,
+                    (double) CODEC_BENCHMARK_FRAMES * frameSize / seconds / 1024 / 1024,
+                    (double) allocated / CODEC_BENCHMARK_FRAMES, checksum));
+        }
+    }
+
+    // Writes the message the way the gRPC framer does and returns its size.
+    private static int drain(final InputStream message, final ByteArrayOutputStream sink)
+            throws IOException {
+        sink.reset();
+        if (message instanceof Drainable) {
+            return ((Drainable) message).drainTo(sink);
+        }
+        final byte[] chunk = new byte[SAMPLE_BLOCK_SIZE];
+        int count;
+        while ((count = message.read(chunk)) >= 0) {
+            sink.write(chunk, 0, count);
+        }
+        return sink.size();
+    }
+
+    /**
+     * Received message stream; like the one gRPC hands to the marshallers, its size is known.
+     */
+    private static class KnownLengthInputStream extends ByteArrayInputStream
+            implements KnownLength {
+        KnownLengthInputStream(final byte[] buf) {
+            super(buf);
+        }
+    }
+
+    private static String percentiles(final List<Long> samplesNanos) {
+        final long[] sorted;
+        synchronized (samplesNanos) {
+            if (samplesNanos.isEmpty()) {
+                return "n/a";
+            }
+            sorted = new long[samplesNanos.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = samplesNanos.get(i);
+            }
+        }
+        Arrays.sort(sorted);
+        return String.format("p50=%d p90=%d p99=%d max=%d",
+                percentileMs(sorted, 0.50), percentileMs(sorted, 0.90),
+                percentileMs(sorted, 0.99), TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length - 1]));
+    }
+
+    private static long percentileMs(final long[] sorted, final double percentile) {
+        final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+    }
+
+    private static byte[] loadUtterance(final String path) throws IOException {
+        if (path == null) {
+            final byte[] utterance = new byte[SAMPLE_RATE * 2 * SYNTHETIC_UTTERANCE_MS / 1000];
+            for (int i = 0; i < utterance.length / 2; i++) {
+                final short value = (short) (4000 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE));
+                utterance[2 * i] = (byte) value;
+                utterance[2 * i + 1] = (byte) (value >> 8);
+            }
+            return utterance;
+        }
+        try (InputStream in = new FileInputStream(path)) {
+            final byte[] utterance = new byte[in.available()];
+            int offset = 0;
+            while (offset < utterance.length) {
+                final int read = in.read(utterance, offset, utterance.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return Arrays.copyOf(utterance, offset);
+        }
+    }
+
+    /**
+     * Streams the utterance block by block at real time pace, then waits for the reply.
+     */
+    private class VirtualDevice implements ReplayingConverseCall.Listener, Runnable {
+        private final EmbeddedAssistantGrpc.EmbeddedAssistantStub mStub;
+        private final ScheduledExecutorService mExecutor;
+        private final byte[] mUtterance;
+        private final long mHedgeDelayMs;
+        private final CountDownLatch mDone;
+        private int mTurnsLeft;
+
+        private ReplayingConverseCall mCall;
+        private boolean mStreaming;
+        private boolean mAborted;
+        private int mOffset;
+        private long mTurnStartNanos;
+        private volatile long mHalfCloseNanos;
+        private volatile boolean mFirstAudioSeen;
+
+        VirtualDevice(final EmbeddedAssistantGrpc.EmbeddedAssistantStub stub,
+                      final ScheduledExecutorService executor, final byte[] utterance,
+                      final int turns, final long hedgeDelayMs, final CountDownLatch done) {
+            mStub = stub;
+            mExecutor = executor;
+            mUtterance = utterance;
+            mTurnsLeft = turns;
+            mHedgeDelayMs = hedgeDelayMs;
+            mDone = done;
+        }
+
+        synchronized void startTurn() {
+            mStreaming = true;
+            mAborted = false;
+            mOffset = 0;
+            mFirstAudioSeen = false;
+            mTurnStartNanos = System.nanoTime();
+            mCall = new ReplayingConverseCall(mStub, ConverseRequests.config(SAMPLE_RATE),
+                    CONVERSE_REPLAY_BUFFER_SIZE, CONVERSE_MAX_ATTEMPTS, mHedgeDelayMs,
+                    CONVERSE_FIRST_RESPONSE_TIMEOUT_MS, mExecutor, this);
+            mCall.start();
+            mRequestCount.incrementAndGet();
+            mExecutor.execute(this);
+        }
+
+        @Override
+        public synchronized void run() {
+            if (mAborted) {
+                mStreaming = false;
+                nextTurn();
+                return;
+            }
+            final int length = Math.min(SAMPLE_BLOCK_SIZE, mUtterance.length - mOffset);
+            if (length <= 0) {
+                mStreaming = false;
+                mHalfCloseNanos = System.nanoTime();
+                mCall.finish();
+                return;
+            }
+            mCall.sendAudio(ByteBuffer.wrap(mUtterance, mOffset, length));
+            mOffset += length;
+            mRequestCount.incrementAndGet();
+            mBytesSent.addAndGet(length);
+            final long nextNanos = mTurnStartNanos + (mOffset / SAMPLE_BLOCK_SIZE) * BLOCK_PERIOD_NANOS;
+            mExecutor.schedule(this, nextNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void onResponse(final ReplayingConverseCall call,
+                               final ConverseCodec.Response value) {
+            if (value.getConverseResponseCase() == ConverseResponse.ConverseResponseCase.AUDIO_OUT) {
+                mBytesReceived.addAndGet(value.getAudioData().remaining());
+                if (!mFirstAudioSeen) {
+                    mFirstAudioSeen = true;
+                    record(mFirstAudioLatenciesNanos, System.nanoTime() - mHalfCloseNanos);
+                }
+            }
+        }
+
+        @Override
+        public void onError(final ReplayingConverseCall call, final Throwable t) {
+            Log.w(TAG, "virtual device turn failed: " + t);
+            mErrorCount.incrementAndGet();
+            synchronized (this) {
+                if (mStreaming) {
+                    // The pending block will start the next turn.
+                    mAborted = true;
+                    return;
+                }
+            }
+            nextTurn();
+        }
+
+        @Override
+        public void onCompleted(final ReplayingConverseCall call) {
+            record(mTurnLatenciesNanos, System.nanoTime() - mHalfCloseNanos);
+            nextTurn();
+        }
+
+        private void nextTurn() {
+            if (--mTurnsLeft > 0) {
+                mExecutor.execute(this::startTurn);
+            } else {
+                mDone.countDown();
+            }
+        }
+
+        private void record(final List<Long> samples, final long nanos) {
+            synchronized (samples) {
+                samples.add(nanos);
+            }
+        }
+    }
+}
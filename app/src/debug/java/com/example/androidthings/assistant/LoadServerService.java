@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.io.IOException;
+
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.netty.NettyServerBuilder;
+
+/**
+ * Serves a {@link LocalAssistantService} over HTTP/2 on a loopback port for the
+ * {@link LoadGeneratorService}, in its own process so that the client side measurements do not
+ * include the server. It starts when bound, with the network conditions given by the extras of
+ * the binding intent, and stops once unbound, logging the allocations of the server process.
+ */
+public class LoadServerService extends Service {
+    private static final String TAG = LoadServerService.class.getSimpleName();
+
+    static final String EXTRA_PORT = "port";
+    static final int DEFAULT_PORT = 50051;
+
+    private static final int SAMPLE_RATE = 16000;
+
+    private LocalAssistantService mService;
+    private Server mServer;
+    private long mStartAllocatedBytes;
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        final int port = intent.getIntExtra(EXTRA_PORT, DEFAULT_PORT);
+        mService = new LocalAssistantService(
+                LocalAssistantService.scriptedReply("what time is it", SAMPLE_RATE,
+                        intent.getIntExtra(LoadGeneratorService.EXTRA_REPLY_MS,
+                                BuildConfig.LOCAL_ASSISTANT_REPLY_MS)),
+                networkConditions(intent).build(),
+                BuildConfig.LOCAL_ASSISTANT_RANDOM_SEED);
+        // 16bit mono audio_in.
+        mService.setEndOfUtteranceBytes(2 * SAMPLE_RATE / 1000 * intent.getIntExtra(
+                LoadGeneratorService.EXTRA_END_OF_UTTERANCE_MS,
+                BuildConfig.LOCAL_ASSISTANT_END_OF_UTTERANCE_MS));
+        try {
+            mServer = NettyServerBuilder.forPort(port)
+                    .addService(mService)
+                    .build()
+                    .start();
+        } catch (final IOException e) {
+            Log.e(TAG, "error starting load server on port " + port, e);
+            mService.shutdown();
+            return null;
+        }
+        mStartAllocatedBytes = LoadGeneratorService.allocatedBytes();
+        Log.i(TAG, "load server listening on port " + port);
+        return new Binder();
+    }
+
+    @Override
+    public boolean onUnbind(final Intent intent) {
+        Log.i(TAG, String.format("server process allocated %.1f KB",
+                (LoadGeneratorService.allocatedBytes() - mStartAllocatedBytes) / 1024.0));
+        stop();
+        return false;
+    }
+
+    @Override
+    public void onDestroy() {
+        stop();
+        super.onDestroy();
+    }
+
+    private void stop() {
+        if (mServer != null) {
+            mServer.shutdownNow();
+            mServer = null;
+        }
+        if (mService != null) {
+            mService.shutdown();
+            mService = null;
+        }
+    }
+
+    /**
+     * Returns the {@code LOCAL_ASSISTANT_*} network conditions with the faults requested by the
+     * {@code error_*} and {@code stall_rate} extras of {@code intent}.
+     */
+    static LocalAssistantService.NetworkConditions.Builder networkConditions(
+            final Intent intent) {
+        final LocalAssistantService.NetworkConditions.Builder conditions =
+                LocalAssistantServer.defaultConditions();
+        if (intent.hasExtra(LoadGeneratorService.EXTRA_ERROR_CODE)) {
+            conditions.setError(
+                    Status.Code.valueOf(intent.getStringExtra(LoadGeneratorService.EXTRA_ERROR_CODE)),
+                    intent.getIntExtra(LoadGeneratorService.EXTRA_ERROR_AFTER, 1),
+                    intent.getFloatExtra(LoadGeneratorService.EXTRA_ERROR_RATE, 1f));
+        }
+        conditions.setStallRate(intent.getFloatExtra(LoadGeneratorService.EXTRA_STALL_RATE, 0f));
+        return conditions;
+    }
+}
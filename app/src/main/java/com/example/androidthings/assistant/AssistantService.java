@@ -0,0 +1,1029 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.things.contrib.driver.button.Button;
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.PeripheralManagerService;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+import com.google.auth.oauth2.UserCredentials;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.auth.MoreCallCredentials;
+
+/**
+ * Push-to-talk and hands-free turns with the Google Assistant, shared by the board specific
+ * services: they open the audio user drivers of their board and provide its capture tuning.
+ */
+public abstract class AssistantService extends Service implements Button.OnButtonEventListener {
+    private static final String TAG = AssistantService.class.getSimpleName();
+
+    public static final String ACTION_CONVERSE_RESULT = "com.example.androidthings.assistant.ACTION_CONVERSE_RESULT";
+    public static final String ARG_CONVERSE_UTTERANCE = "com.example.androidthings.assistant.ARG_CONVERSE_UTTERANCE";
+    public static final String ACTION_ASSISTANT_READY = "com.example.androidthings.assistant.ACTION_ASSISTANT_READY";
+    public static final String ARG_BOOT_TO_READY_MS = "com.example.androidthings.assistant.ARG_BOOT_TO_READY_MS";
+    public static final String ACTION_ASSISTANT_STARTUP_FAILED = "com.example.androidthings.assistant.ACTION_ASSISTANT_STARTUP_FAILED";
+    public static final String ARG_STARTUP_ERROR = "com.example.androidthings.assistant.ARG_STARTUP_ERROR";
+
+    // Peripheral constants.
+    private static final String BUTTON_PIN = "BCM23";
+    private static final int BUTTON_DEBOUNCE_DELAY_MS = 20;
+    // Output switched by the local light commands, e.g. wired to a relay.
+    private static final String LIGHT_PIN = "BCM26";
+
+    // Audio constants.
+    private static final int SAMPLE_RATE = 16000;
+    private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+    static final AudioFormat AUDIO_FORMAT_STEREO =
+            new AudioFormat.Builder()
+            .setChannelMask(AudioFormat.CHANNEL_IN_STEREO)
+            .setEncoding(ENCODING)
+            .setSampleRate(SAMPLE_RATE)
+            .build();
+    private static final AudioFormat AUDIO_FORMAT_OUT_MONO =
+            new AudioFormat.Builder()
+            .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+            .setEncoding(ENCODING)
+            .setSampleRate(SAMPLE_RATE)
+            .build();
+    private static final AudioFormat AUDIO_FORMAT_IN_MONO =
+            new AudioFormat.Builder()
+            .setChannelMask(AudioFormat.CHANNEL_IN_MONO)
+            .setEncoding(ENCODING)
+            .setSampleRate(SAMPLE_RATE)
+            .build();
+    private static final int SAMPLE_BLOCK_SIZE = 1024;
+    private static final int ECHO_CANCELLER_BLOCK_SIZE = 256;
+    // 0.5 sec of playback to capture delay at 16khz.
+    private static final int ECHO_CANCELLER_MAX_DELAY = SAMPLE_RATE / 2;
+
+    // Google Assistant API constants.
+    private static final String ASSISTANT_ENDPOINT = "embeddedassistant.googleapis.com";
+    private static final UserCredentials ASSISTANT_CREDENTIALS = new UserCredentials(
+            Credentials.CLIENT_ID,
+            Credentials.CLIENT_SECRET,
+            Credentials.REFRESH_TOKEN
+    );
+
+    // Turn retry constants.
+    // buffer of 10 sec of sample data at 16khz / 16bit.
+    private static final int CONVERSE_REPLAY_BUFFER_SIZE = SAMPLE_RATE * 2 * 10;
+    private static final int CONVERSE_MAX_ATTEMPTS = 3;
+    // Delay before a hedged attempt when no response arrived after the request ended, 0 disables.
+    private static final long CONVERSE_HEDGE_DELAY_MS = 0;
+    // Press to silence latency budget when interrupting a playing response.
+    private static final long BARGE_IN_TARGET_MS = 50;
+    // How long teardown waits for the startup tasks still running.
+    private static final long STARTUP_TIMEOUT_MS = 5000;
+    // How long teardown waits for the assistant thread to release the audio objects.
+    private static final long TEARDOWN_TIMEOUT_MS = 2000;
+
+    // Hands-free activation constants.
+    private static final String KEYWORD_TEMPLATES_ASSET = "keyword_templates.bin";
+    // Ends a hands-free turn if the assistant did not detect the end of the utterance.
+    private static final long HANDS_FREE_MAX_RECORDING_MS = 8000;
+
+    // Pipeline watchdog constants.
+    // Bounds a turn until its first response, retries included. The reply that follows plays in
+    // real time for as long as it lasts, the network stage watches it.
+    private static final long CONVERSE_FIRST_RESPONSE_TIMEOUT_MS = 30000;
+    private static final long WATCHDOG_PERIOD_MS = 250;
+    // About 30 SAMPLE_BLOCK_SIZE blocks at 16khz / 16bit.
+    private static final long CAPTURE_STALL_MS = 1000;
+    // Wait for the first or next response once the request ended.
+    private static final long NETWORK_STALL_MS = 10000;
+    // The track accepted no audio of a response for this long.
+    private static final long PLAYBACK_STALL_MS = 2000;
+    // Wait for room in a full track buffer, 10ms of audio at 16khz / 16bit.
+    private static final long PLAYBACK_POLL_MS = 10;
+
+    // gRPC client and stream observers.
+    private ManagedChannel mAssistantChannel;
+    private LocalAssistantServer mLocalAssistant;
+    private EmbeddedAssistantGrpc.EmbeddedAssistantStub mAssistantService;
+    private ScheduledExecutorService mAssistantScheduler;
+    private ReplayingConverseCall mAssistantCall;
+
+    // Audio playback and recording objects, also read by the watchdog. Only replaced or released
+    // on the assistant thread; other threads read them once into a local.
+    private volatile AudioTrack mAudioTrack;
+    private volatile AudioRecord mAudioRecord;
+    // Orders the response writes with the barge-in flush and the track rebuilds.
+    private final Object mPlaybackLock = new Object();
+
+    // Capture buffer reused for every block, and the processing applied to it.
+    private final ByteBuffer mCaptureBuffer = ByteBuffer.allocateDirect(SAMPLE_BLOCK_SIZE);
+    private final EchoCanceller mEchoCanceller =
+            new EchoCanceller(ECHO_CANCELLER_BLOCK_SIZE, ECHO_CANCELLER_MAX_DELAY);
+    // Runs on every block while the recorder runs, including under a response.
+    private final AudioProcessingChain mCaptureFrontEnd;
+    // Level stages of the audio_in of a turn.
+    private final AudioProcessingChain mCaptureProcessing;
+
+    // Hardware peripherals.
+    private final String mLedPin;
+    private Button mButton;
+    private volatile Gpio mLed;
+    private Gpio mLight;
+    private AudioManager mAudioManager;
+
+    // Device commands run as soon as the transcript arrives.
+    private final LocalCommands mLocalCommands = new LocalCommands.Builder()
+            .add("turn on the light", true, number -> setLight(true))
+            .add("turn off the light", true, number -> setLight(false))
+            .add("volume up", true, number -> mAudioManager.adjustStreamVolume(
+                    AudioManager.STREAM_MUSIC, AudioManager.ADJUST_RAISE, 0))
+            .add("volume down", true, number -> mAudioManager.adjustStreamVolume(
+                    AudioManager.STREAM_MUSIC, AudioManager.ADJUST_LOWER, 0))
+            .add("set the volume to " + LocalCommands.NUMBER, true, this::setVolumeLevel)
+            .build();
+
+    // Assistant Thread and Runnables implementing the push-to-talk functionality.
+    private HandlerThread mAssistantThread;
+    private ServiceStartup mStartup;
+    private CompletableFuture<Void> mStartupFuture;
+    // Only accessed on the assistant thread.
+    private boolean mReady;
+    private boolean mStartupFailed;
+    // Set by onDestroy, a late startup then leaves everything alone.
+    private volatile boolean mDestroyed;
+    private final ArrayDeque<Runnable> mPendingButtonEvents = new ArrayDeque<>();
+    // Null when no keyword templates are bundled.
+    private KeywordSpotter mKeywordSpotter;
+    private AudioProcessingChain mKeywordProcessing;
+    private boolean mListening;
+    private boolean mHandsFreeTurn;
+    private volatile long mButtonPressNanos;
+    // Standby bookkeeping, only accessed on the assistant thread.
+    private boolean mStandby;
+    private long mStandbyCpuMs;
+    private long mStandbyRealtimeMs;
+    private long mWakeNanos;
+    private Handler mAssistantHandler;
+    private PipelineWatchdog mWatchdog;
+    private PipelineWatchdog.Stage mCaptureStage;
+    private PipelineWatchdog.Stage mNetworkStage;
+    private PipelineWatchdog.Stage mPlaybackStage;
+    private final TurnStateMachine mTurns = new TurnStateMachine(new TurnStateMachine.Actions() {
+        @Override
+        public void startTurn(final int turnId) {
+            Log.i(TAG, "starting assistant request " + turnId);
+            leaveStandby();
+            silencePlayback();
+            startCapture();
+            mCaptureProcessing.reset();
+            final boolean handsFree = mHandsFreeTurn;
+            mHandsFreeTurn = false;
+            mAssistantCall = new ReplayingConverseCall(mAssistantService,
+                    ConverseRequests.config(SAMPLE_RATE), CONVERSE_REPLAY_BUFFER_SIZE,
+                    CONVERSE_MAX_ATTEMPTS, CONVERSE_HEDGE_DELAY_MS,
+                    CONVERSE_FIRST_RESPONSE_TIMEOUT_MS, mAssistantScheduler,
+                    new TurnListener(turnId, handsFree));
+            mAssistantCall.start();
+            mAssistantHandler.post(mStreamAssistantRequest);
+            if (handsFree) {
+                mAssistantHandler.postDelayed(() -> releaseHandsFreeTurn(turnId),
+                        HANDS_FREE_MAX_RECORDING_MS);
+            }
+        }
+
+        @Override
+        public void stopRecording(final int turnId) {
+            Log.i(TAG, "ending assistant request " + turnId);
+            mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
+            mAssistantCall.finish();
+            mNetworkStage.begin();
+            Log.d(TAG, "capture processing: " + mCaptureFrontEnd.getStats(SAMPLE_RATE) + ", "
+                    + mCaptureProcessing.getStats(SAMPLE_RATE));
+            if (mKeywordSpotter != null) {
+                // Capture goes on under the response, the keyword can then barge in.
+                listenForKeyword();
+            } else {
+                final AudioRecord audioRecord = mAudioRecord;
+                if (audioRecord != null) {
+                    audioRecord.stop();
+                }
+                mCaptureStage.end();
+            }
+        }
+
+        @Override
+        public void cancelTurn(final int turnId, final TurnStateMachine.State state) {
+            Log.i(TAG, "cancelling assistant request " + turnId + " while " + state);
+            mAssistantCall.cancel();
+            mAssistantCall = null;
+            mNetworkStage.end();
+            // A write of the superseded turn stops at its next piece.
+            mPlaybackStage.end();
+            if (state == TurnStateMachine.State.RECORDING) {
+                mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
+                final AudioRecord audioRecord = mAudioRecord;
+                if (audioRecord != null) {
+                    audioRecord.stop();
+                }
+                mCaptureStage.end();
+            }
+        }
+    });
+    private final PipelineRecovery mRecovery = new PipelineRecovery(mTurns,
+            runnable -> mAssistantHandler.post(runnable), new PipelineRecovery.Actions() {
+        @Override
+        public boolean stopCapture() {
+            final AudioRecord audioRecord = mAudioRecord;
+            if (audioRecord == null) {
+                return false;
+            }
+            try {
+                audioRecord.stop();
+            } catch (final IllegalStateException e) {
+                // Released by the teardown meanwhile.
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void rebuildCapture() {
+            final AudioRecord audioRecord = mAudioRecord;
+            if (audioRecord == null) {
+                return;
+            }
+            mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
+            mAssistantHandler.removeCallbacks(mListenForKeyword);
+            mListening = false;
+            audioRecord.release();
+            mAudioRecord = createAudioRecord();
+            if (mTurns.getState() == TurnStateMachine.State.RECORDING) {
+                startCapture();
+                mAssistantHandler.post(mStreamAssistantRequest);
+            } else {
+                mCaptureStage.end();
+                listenForKeyword();
+            }
+        }
+
+        @Override
+        public void restartNetwork() {
+            mTurns.cancel();
+            mAssistantChannel.shutdownNow();
+            connectAssistant();
+            startListening();
+        }
+
+        @Override
+        public void rebuildPlayback() {
+            synchronized (mPlaybackLock) {
+                if (mAudioTrack == null) {
+                    return;
+                }
+                mAudioTrack.release();
+                // The pending write plays the rest of its response on the new track.
+                mAudioTrack = createAudioTrack();
+            }
+        }
+    });
+
+    private final Runnable mStartAssistantRequest = new Runnable() {
+        @Override
+        public void run() {
+            mTurns.onPress();
+        }
+    };
+    private final Runnable mStreamAssistantRequest = new Runnable() {
+        @Override
+        public void run() {
+            final AudioRecord audioRecord = mAudioRecord;
+            if (mTurns.getState() != TurnStateMachine.State.RECORDING || audioRecord == null) {
+                return;
+            }
+            mCaptureBuffer.clear();
+            final int result = audioRecord.read(mCaptureBuffer, mCaptureBuffer.capacity(),
+                    AudioRecord.READ_BLOCKING);
+            if (result < 0) {
+                Log.e(TAG, "error reading from audio stream:" + result);
+                Trace.dump(TAG);
+                return;
+            }
+            mCaptureStage.progress();
+            if (mWakeNanos != 0) {
+                Log.i(TAG, "wake to first capture: "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mWakeNanos) + "ms");
+                mWakeNanos = 0;
+            }
+            final int turnId = mTurns.getTurnId();
+            Trace.event(Trace.CAPTURE_READ, result, turnId);
+            mCaptureFrontEnd.process(mCaptureBuffer, result);
+            mCaptureProcessing.process(mCaptureBuffer, result);
+            mCaptureBuffer.limit(result);
+            mAssistantCall.sendAudio(mCaptureBuffer);
+            Trace.event(Trace.AUDIO_IN_SENT, result, turnId);
+            mAssistantHandler.post(mStreamAssistantRequest);
+        }
+    };
+    private final Runnable mEnterStandby = new Runnable() {
+        @Override
+        public void run() {
+            if (mStandby || mTurns.getState() != TurnStateMachine.State.IDLE) {
+                return;
+            }
+            // A paused track and a stopped recorder let the framework put the drivers in standby,
+            // keyword listening keeps the capture path running.
+            Log.i(TAG, "entering standby after " + BuildConfig.IDLE_STANDBY_MS + "ms idle"
+                    + (mListening ? ", capture stays on for keyword listening" : ""));
+            synchronized (mPlaybackLock) {
+                if (mAudioTrack != null) {
+                    mAudioTrack.pause();
+                    mAudioTrack.flush();
+                }
+            }
+            mStandby = true;
+            mStandbyCpuMs = Process.getElapsedCpuTime();
+            mStandbyRealtimeMs = SystemClock.elapsedRealtime();
+        }
+    };
+    private final Runnable mStopAssistantRequest = new Runnable() {
+        @Override
+        public void run() {
+            mTurns.onRelease();
+        }
+    };
+    private final Runnable mListenForKeyword = new Runnable() {
+        @Override
+        public void run() {
+            final AudioRecord audioRecord = mAudioRecord;
+            if (mTurns.getState() == TurnStateMachine.State.RECORDING || audioRecord == null) {
+                mListening = false;
+                return;
+            }
+            mCaptureBuffer.clear();
+            final int result = audioRecord.read(mCaptureBuffer, mCaptureBuffer.capacity(),
+                    AudioRecord.READ_BLOCKING);
+            if (result < 0) {
+                Log.e(TAG, "error reading from audio stream:" + result);
+                Trace.dump(TAG);
+                mListening = false;
+                return;
+            }
+            mCaptureStage.progress();
+            // Turn 0, listening is not part of a turn.
+            Trace.event(Trace.CAPTURE_READ, result, 0);
+            mCaptureFrontEnd.process(mCaptureBuffer, result);
+            mKeywordProcessing.process(mCaptureBuffer, result);
+            final String keyword = mKeywordSpotter.pollDetection();
+            if (keyword != null) {
+                Log.i(TAG, "keyword detected: " + keyword + ", "
+                        + mKeywordProcessing.getStats(SAMPLE_RATE));
+                mListening = false;
+                // The recorder keeps running into the turn, barging in on a response.
+                mHandsFreeTurn = true;
+                onButtonEvent(mButton, true);
+                return;
+            }
+            mAssistantHandler.post(mListenForKeyword);
+        }
+    };
+
+    /**
+     * @param ledPin           LED lit while the button is pressed and blinking during playback
+     * @param highPassCutoffHz cutoff of the high-pass filter applied to the capture
+     * @param levelStages      stages applied to the audio_in of a turn after echo cancellation,
+     *                         e.g. the gain control tuned for the board's microphones
+     */
+    AssistantService(final String ledPin, final int highPassCutoffHz,
+                     final AudioProcessor... levelStages) {
+        mLedPin = ledPin;
+        mCaptureFrontEnd = new AudioProcessingChain.Builder(SAMPLE_BLOCK_SIZE / 2)
+                .add(new HighPassFilter(highPassCutoffHz, SAMPLE_RATE))
+                .add(mEchoCanceller)
+                .build();
+        final AudioProcessingChain.Builder capture =
+                new AudioProcessingChain.Builder(SAMPLE_BLOCK_SIZE / 2);
+        for (final AudioProcessor stage : levelStages) {
+            capture.add(stage);
+        }
+        mCaptureProcessing = capture.build();
+    }
+
+    /**
+     * Opens the audio user drivers of the board and registers them; runs on a startup thread.
+     */
+    abstract void openAudioDrivers() throws IOException;
+
+    /**
+     * Unregisters and closes the audio user drivers, if they were opened.
+     */
+    abstract void closeAudioDrivers() throws IOException;
+
+    /**
+     * Called once idle: schedules standby and listens for the keyword.
+     */
+    private void startListening() {
+        scheduleStandby();
+        listenForKeyword();
+    }
+
+    /**
+     * Keeps capturing outside of the recordings so that the keyword spotter can start a turn,
+     * while idle or under a response.
+     */
+    private void listenForKeyword() {
+        if (mKeywordSpotter == null || mListening
+                || mTurns.getState() == TurnStateMachine.State.RECORDING) {
+            return;
+        }
+        mListening = true;
+        mKeywordProcessing.reset();
+        startCapture();
+        mAssistantHandler.post(mListenForKeyword);
+    }
+
+    /**
+     * Starts the recorder unless it already runs, e.g. when a turn starts while listening for
+     * the keyword.
+     */
+    private void startCapture() {
+        final AudioRecord audioRecord = mAudioRecord;
+        if (audioRecord == null) {
+            return;
+        }
+        if (audioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            // The echo canceller is aligned on the capture timeline, which restarts here.
+            mCaptureFrontEnd.reset();
+            audioRecord.startRecording();
+        }
+        mCaptureStage.begin();
+    }
+
+    // Runs on the watchdog thread, stopping the recorder returns the blocked read.
+    // Hands-free turns have no button release, they end with the utterance.
+    private void releaseHandsFreeTurn(final int turnId) {
+        if (mTurns.isCurrent(turnId)) {
+            mTurns.onRelease();
+        }
+    }
+
+    private void scheduleStandby() {
+        mAssistantHandler.removeCallbacks(mEnterStandby);
+        mAssistantHandler.postDelayed(mEnterStandby, BuildConfig.IDLE_STANDBY_MS);
+    }
+
+    // Reports the CPU time spent in standby, the first capture read then reports the wake latency.
+    private void leaveStandby() {
+        mAssistantHandler.removeCallbacks(mEnterStandby);
+        if (!mStandby) {
+            return;
+        }
+        mStandby = false;
+        mWakeNanos = mHandsFreeTurn ? System.nanoTime() : mButtonPressNanos;
+        final long idleMs = SystemClock.elapsedRealtime() - mStandbyRealtimeMs;
+        final long cpuMs = Process.getElapsedCpuTime() - mStandbyCpuMs;
+        Log.i(TAG, String.format("leaving standby after %dms, %dms cpu (%.2f%%)", idleMs, cpuMs,
+                idleMs > 0 ? 100f * cpuMs / idleMs : 0f));
+    }
+
+    /**
+     * Barge-in: discards the audio still queued for playback before a new turn records. The new
+     * turn id is already published, so no write of the superseded turn lands after the flush.
+     */
+    private void silencePlayback() {
+        synchronized (mPlaybackLock) {
+            if (mAudioTrack != null) {
+                mAudioTrack.pause();
+                mAudioTrack.flush();
+            }
+        }
+        final long pressToSilenceMs =
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mButtonPressNanos);
+        if (pressToSilenceMs > BARGE_IN_TARGET_MS) {
+            Log.w(TAG, "press to silence: " + pressToSilenceMs + "ms, target is "
+                    + BARGE_IN_TARGET_MS + "ms");
+        } else {
+            Log.d(TAG, "press to silence: " + pressToSilenceMs + "ms");
+        }
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(final Intent intent) {
+        final long bindNanos = System.nanoTime();
+
+        mAssistantThread = new HandlerThread("assistantThread");
+        mAssistantThread.start();
+        mAssistantHandler = new Handler(mAssistantThread.getLooper());
+        mAssistantScheduler = Executors.newSingleThreadScheduledExecutor();
+        mWatchdog = new PipelineWatchdog(mAssistantScheduler, WATCHDOG_PERIOD_MS);
+        mCaptureStage = mWatchdog.addStage("capture", CAPTURE_STALL_MS,
+                mRecovery::recoverCapture);
+        mNetworkStage = mWatchdog.addStage("network", NETWORK_STALL_MS,
+                mRecovery::recoverNetwork);
+        mPlaybackStage = mWatchdog.addStage("playback", PLAYBACK_STALL_MS,
+                mRecovery::recoverPlayback);
+
+        // Peripherals and the assistant channel are independent, only the audio objects need the
+        // user drivers to be registered first.
+        mStartup = new ServiceStartup(TAG);
+        final CompletableFuture<Void> audioDrivers =
+                mStartup.run("audio drivers", this::openAudioDrivers);
+        mStartupFuture = CompletableFuture.allOf(
+                mStartup.runAfter(audioDrivers, "audio objects", this::createAudioObjects),
+                mStartup.run("button", this::openButton),
+                mStartup.run("light", this::openLight),
+                mStartup.run("assistant channel", this::createAssistantChannel),
+                mStartup.run("keyword spotter", this::loadKeywordSpotter));
+        mStartupFuture.whenComplete((ignored, error) ->
+                mAssistantHandler.post(() -> onStartupFinished(bindNanos, error)));
+
+        return null;
+    }
+
+    private void openButton() throws IOException {
+        final PeripheralManagerService pioService = new PeripheralManagerService();
+        mLed = pioService.openGpio(mLedPin);
+        mLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+        mButton = new Button(BUTTON_PIN, Button.LogicState.PRESSED_WHEN_HIGH);
+        mButton.setDebounceDelay(BUTTON_DEBOUNCE_DELAY_MS);
+        mButton.setOnButtonEventListener(this);
+    }
+
+    // The light is a demo output, the assistant starts without it.
+    private void openLight() {
+        Gpio light = null;
+        try {
+            light = new PeripheralManagerService().openGpio(LIGHT_PIN);
+            light.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+            mLight = light;
+        } catch (final IOException e) {
+            Log.w(TAG, "error opening light on " + LIGHT_PIN + ", light commands disabled", e);
+            if (light != null) {
+                try {
+                    light.close();
+                } catch (final IOException closeError) {
+                    Log.d(TAG, "error closing light", closeError);
+                }
+            }
+        }
+    }
+
+    private void createAudioObjects() {
+        mAudioManager = (AudioManager)this.getSystemService(Context.AUDIO_SERVICE);
+        final int maxVolume = mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
+        Log.d(TAG, "setting volume to: " + maxVolume);
+        mAudioManager.setStreamVolume(AudioManager.STREAM_MUSIC, maxVolume, 0);
+        mAudioTrack = createAudioTrack();
+        mAudioRecord = createAudioRecord();
+    }
+
+    private void setLight(final boolean on) throws IOException {
+        if (mLight == null) {
+            // The command fails, so the assistant still answers.
+            throw new IOException("light not available on " + LIGHT_PIN);
+        }
+        mLight.setValue(on);
+    }
+
+    // Level from 0 to 10.
+    private void setVolumeLevel(final int level) {
+        final int maxVolume = mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
+        mAudioManager.setStreamVolume(AudioManager.STREAM_MUSIC,
+                maxVolume * Math.min(level, 10) / 10, 0);
+    }
+
+    /**
+     * Runs a command matched in the transcript; returns false if it failed.
+     */
+    private boolean runLocalCommand(final LocalCommands.Match command) {
+        final long start = System.nanoTime();
+        try {
+            command.run();
+        } catch (final IOException e) {
+            Log.e(TAG, "error running local command: " + command.getPhrase(), e);
+            return false;
+        }
+        Log.i(TAG, "local command \"" + command.getPhrase() + "\" ran in "
+                + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + "us");
+        return true;
+    }
+
+    private static AudioTrack createAudioTrack() {
+        final int outputBufferSize = AudioTrack.getMinBufferSize(AUDIO_FORMAT_OUT_MONO.getSampleRate(),
+                AUDIO_FORMAT_OUT_MONO.getChannelMask(),
+                AUDIO_FORMAT_OUT_MONO.getEncoding());
+        return new AudioTrack.Builder()
+                .setAudioFormat(AUDIO_FORMAT_OUT_MONO)
+                .setBufferSizeInBytes(outputBufferSize)
+                .build();
+    }
+
+    private static AudioRecord createAudioRecord() {
+        final int inputBufferSize = AudioRecord.getMinBufferSize(AUDIO_FORMAT_STEREO.getSampleRate(),
+                AUDIO_FORMAT_STEREO.getChannelMask(),
+                AUDIO_FORMAT_STEREO.getEncoding());
+        return new AudioRecord.Builder()
+                .setAudioSource(MediaRecorder.AudioSource.MIC)
+                .setAudioFormat(AUDIO_FORMAT_IN_MONO)
+                .setBufferSizeInBytes(inputBufferSize)
+                .build();
+    }
+
+    private void createAssistantChannel() throws IOException {
+        if (BuildConfig.USE_LOCAL_ASSISTANT) {
+            mLocalAssistant = LocalAssistantServer.startDefault(TAG, SAMPLE_RATE);
+        }
+        connectAssistant();
+    }
+
+    private void connectAssistant() {
+        if (mLocalAssistant != null) {
+            mAssistantChannel = mLocalAssistant.newChannel();
+            mAssistantService = EmbeddedAssistantGrpc.newStub(mAssistantChannel);
+        } else {
+            mAssistantChannel = ManagedChannelBuilder.forTarget(ASSISTANT_ENDPOINT).build();
+            mAssistantService = EmbeddedAssistantGrpc.newStub(mAssistantChannel)
+                    .withCallCredentials(MoreCallCredentials.from(ASSISTANT_CREDENTIALS));
+        }
+    }
+
+    // Hands-free activation is optional, push-to-talk works without it.
+    private void loadKeywordSpotter() {
+        try {
+            mKeywordSpotter =
+                    KeywordSpotter.fromAssets(getAssets(), KEYWORD_TEMPLATES_ASSET, SAMPLE_RATE);
+        } catch (final IOException e) {
+            Log.w(TAG, "error loading " + KEYWORD_TEMPLATES_ASSET
+                    + ", hands-free activation disabled", e);
+        }
+        if (mKeywordSpotter != null) {
+            // Fed by the capture front end.
+            mKeywordProcessing = new AudioProcessingChain.Builder(SAMPLE_BLOCK_SIZE / 2)
+                    .add(mKeywordSpotter)
+                    .build();
+        }
+    }
+
+    /**
+     * Runs on the assistant thread once every startup task ended; replays the button events
+     * received in the meantime and reports the startup latency.
+     */
+    private void onStartupFinished(final long bindNanos, final Throwable error) {
+        mStartup.close();
+        if (mDestroyed) {
+            return;
+        }
+        if (error != null) {
+            final Throwable cause =
+                    error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+            Log.e(TAG, "error starting assistant, button events are dropped:", cause);
+            mStartupFailed = true;
+            mPendingButtonEvents.clear();
+            final Intent broadcast = new Intent(ACTION_ASSISTANT_STARTUP_FAILED);
+            broadcast.putExtra(ARG_STARTUP_ERROR, String.valueOf(cause.getMessage()));
+            sendBroadcast(broadcast);
+            return;
+        }
+        mReady = true;
+        mWatchdog.start();
+        final long bindToReadyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - bindNanos);
+        final long bootToReadyMs =
+                SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        Log.i(TAG, "assistant ready: " + bindToReadyMs + "ms after bind, " + bootToReadyMs
+                + "ms after process start");
+        final Intent broadcast = new Intent(ACTION_ASSISTANT_READY);
+        broadcast.putExtra(ARG_BOOT_TO_READY_MS, bootToReadyMs);
+        sendBroadcast(broadcast);
+        while (!mPendingButtonEvents.isEmpty()) {
+            mPendingButtonEvents.poll().run();
+        }
+        startListening();
+    }
+
+    // Button events wait on the assistant thread for startup, and are dropped if it failed.
+    private void postButtonEvent(final Runnable event) {
+        mAssistantHandler.post(() -> {
+            if (mReady) {
+                event.run();
+            } else if (mStartupFailed) {
+                Log.w(TAG, "assistant failed to start, dropping button event");
+            } else {
+                mPendingButtonEvents.add(event);
+            }
+        });
+    }
+
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        writer.println("state: " + mTurns.getState() + ", turn " + mTurns.getTurnId());
+        writer.println("watchdog: " + mWatchdog.getStats());
+        Trace.dump(writer);
+    }
+
+    @Override
+    public void onButtonEvent(final Button button, final boolean pressed) {
+        final Gpio led = mLed;
+        try {
+            if (led != null) {
+                led.setValue(pressed);
+            }
+        } catch (final IOException e) {
+            Log.d(TAG, "error toggling LED:", e);
+        }
+        if (pressed) {
+            mButtonPressNanos = System.nanoTime();
+            postButtonEvent(mStartAssistantRequest);
+        } else {
+            postButtonEvent(mStopAssistantRequest);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Log.d(TAG, "onDestroy");
+        mDestroyed = true;
+        mStartupFuture.cancel(false);
+        try {
+            // Do not tear down peripherals a startup task is still opening.
+            if (!mStartup.cancel(STARTUP_TIMEOUT_MS)) {
+                Log.w(TAG, "startup tasks still running after " + STARTUP_TIMEOUT_MS + "ms");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWatchdog.stop();
+        // The runnables of the assistant thread use the audio objects, they are released there
+        // after the one running, and the thread then quits.
+        mAssistantHandler.post(this::releaseAudioObjects);
+        try {
+            mAssistantThread.join(TEARDOWN_TIMEOUT_MS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mAssistantThread.isAlive()) {
+            Log.w(TAG, "assistant thread still running after " + TEARDOWN_TIMEOUT_MS + "ms");
+        }
+        final Gpio led = mLed;
+        mLed = null;
+        if (led != null) {
+            try {
+                led.close();
+            } catch (final IOException e) {
+                Log.d(TAG, "error closing LED", e);
+            }
+        }
+        if (mLight != null) {
+            try {
+                mLight.close();
+            } catch (final IOException e) {
+                Log.d(TAG, "error closing light", e);
+            }
+            mLight = null;
+        }
+        if (mButton != null) {
+            try {
+                mButton.close();
+            } catch (final IOException e) {
+                Log.d(TAG, "error closing button", e);
+            }
+            mButton = null;
+        }
+        try {
+            closeAudioDrivers();
+        } catch (final IOException e) {
+            Log.d(TAG, "error closing audio drivers", e);
+        }
+        mAssistantScheduler.shutdownNow();
+        if (mAssistantChannel != null) {
+            mAssistantChannel.shutdownNow();
+            mAssistantChannel = null;
+        }
+        if (mLocalAssistant != null) {
+            mLocalAssistant.close();
+            mLocalAssistant = null;
+        }
+    }
+
+    // Runs on the assistant thread, last.
+    private void releaseAudioObjects() {
+        mTurns.cancel();
+        // Drops the runnables still queued, which would use the released objects.
+        mAssistantHandler.removeCallbacksAndMessages(null);
+        mListening = false;
+        final AudioRecord audioRecord = mAudioRecord;
+        mAudioRecord = null;
+        if (audioRecord != null) {
+            audioRecord.stop();
+            audioRecord.release();
+        }
+        synchronized (mPlaybackLock) {
+            if (mAudioTrack != null) {
+                mAudioTrack.stop();
+                mAudioTrack.release();
+                mAudioTrack = null;
+            }
+        }
+        mAssistantThread.quit();
+    }
+
+    /**
+     * Handles the responses of one turn, dropping them once the turn was superseded.
+     */
+    private class TurnListener implements ReplayingConverseCall.Listener {
+        private final int mTurnId;
+        private final boolean mHandsFree;
+        // Set when a local command already answered the turn.
+        private boolean mAudioSuppressed;
+
+        TurnListener(final int turnId, final boolean handsFree) {
+            mTurnId = turnId;
+            mHandsFree = handsFree;
+        }
+
+        @Override
+        public void onResponse(final ReplayingConverseCall call,
+                               final ConverseCodec.Response response) {
+            if (!mTurns.isCurrent(mTurnId)) {
+                return;
+            }
+            mNetworkStage.progress();
+            // Null for AUDIO_OUT, whose data is not parsed.
+            final ConverseResponse value = response.getMessage();
+            switch (response.getConverseResponseCase()) {
+                case EVENT_TYPE:
+                    Log.d(TAG, "converse response event: " + value.getEventType());
+                    if (mHandsFree && value.getEventType()
+                            == ConverseResponse.EventType.END_OF_UTTERANCE) {
+                        mAssistantHandler.post(() -> releaseHandsFreeTurn(mTurnId));
+                    }
+                    break;
+                case RESULT:
+                    final String spokenRequestText = value.getResult().getSpokenRequestText();
+                    if (!spokenRequestText.isEmpty()) {
+                        Log.i(TAG, "assistant request text: " + spokenRequestText);
+
+                        final Intent broadcast = new Intent(ACTION_CONVERSE_RESULT);
+                        broadcast.putExtra(ARG_CONVERSE_UTTERANCE, spokenRequestText);
+                        sendBroadcast(broadcast);
+
+                        final LocalCommands.Match command =
+                                mLocalCommands.match(spokenRequestText);
+                        if (command != null && runLocalCommand(command)) {
+                            mAudioSuppressed = command.suppressesAudio();
+                        }
+                    }
+                    break;
+                case AUDIO_OUT:
+                    final ByteBuffer audioData = response.getAudioData();
+                    Trace.event(Trace.AUDIO_OUT_RECEIVED, audioData.remaining(), mTurnId);
+                    if (mAudioSuppressed) {
+                        break;
+                    }
+                    final long writeStart = System.nanoTime();
+                    final int written = play(audioData);
+                    Trace.event(Trace.PLAYBACK_WRITTEN, written, System.nanoTime() - writeStart);
+                    final Gpio led = mLed;
+                    if (led != null) {
+                        try {
+                            led.setValue(!led.getValue());
+                        } catch (final IOException e) {
+                            Log.e(TAG, "error toggling LED:", e);
+                        }
+                    }
+                    break;
+                case ERROR:
+                    Log.e(TAG, "converse response error: " + value.getError());
+                    break;
+            }
+        }
+
+        /**
+         * Writes the response audio in non-blocking pieces, starting the paused track, until it
+         * was all written or the turn was superseded; returns the bytes written.
+         */
+        private int play(final ByteBuffer audioData) {
+            int written = 0;
+            mPlaybackStage.begin();
+            try {
+                while (audioData.hasRemaining()) {
+                    final int count;
+                    synchronized (mPlaybackLock) {
+                        final AudioTrack audioTrack = mAudioTrack;
+                        if (!mTurns.isCurrent(mTurnId) || audioTrack == null) {
+                            break;
+                        }
+                        if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                            audioTrack.play();
+                        }
+                        final int start = audioData.position();
+                        count = audioTrack.write(audioData, audioData.remaining(),
+                                AudioTrack.WRITE_NON_BLOCKING);
+                        if (count < 0) {
+                            Log.e(TAG, "error writing to audio track: " + count);
+                            break;
+                        }
+                        if (count > 0) {
+                            // The echo reference is exactly what reached the track.
+                            final int end = audioData.position();
+                            final int limit = audioData.limit();
+                            audioData.position(start);
+                            audioData.limit(end);
+                            mEchoCanceller.addReference(audioData);
+                            audioData.limit(limit);
+                            audioData.position(end);
+                        }
+                    }
+                    if (count > 0) {
+                        written += count;
+                        mPlaybackStage.progress();
+                    } else {
+                        SystemClock.sleep(PLAYBACK_POLL_MS);
+                    }
+                }
+            } finally {
+                mPlaybackStage.end();
+            }
+            return written;
+        }
+
+        @Override
+        public void onError(final ReplayingConverseCall call, final Throwable t) {
+            Log.e(TAG, "converse error:", t);
+            Trace.dump(TAG);
+            mAssistantHandler.post(() -> {
+                if (mTurns.isCurrent(mTurnId)) {
+                    mNetworkStage.end();
+                }
+                mTurns.onTurnFinished(mTurnId);
+                startListening();
+            });
+        }
+
+        @Override
+        public void onCompleted(final ReplayingConverseCall call) {
+            Log.i(TAG, "assistant response finished");
+            mAssistantHandler.post(() -> {
+                // Capture ran under the response while listening for the keyword.
+                if (mListening) {
+                    Log.d(TAG, String.format("echo canceller: delay %d, ERLE %.1fdB",
+                            mEchoCanceller.getDelay(), mEchoCanceller.getErleDb()));
+                }
+                // A newer turn owns the network stage and the LED.
+                if (mTurns.isCurrent(mTurnId)) {
+                    mNetworkStage.end();
+                    final Gpio led = mLed;
+                    if (led != null) {
+                        try {
+                            led.setValue(false);
+                        } catch (final IOException e) {
+                            Log.e(TAG, "error turning off LED:", e);
+                        }
+                    }
+                }
+                mTurns.onTurnFinished(mTurnId);
+                startListening();
+            });
+        }
+    }
+}
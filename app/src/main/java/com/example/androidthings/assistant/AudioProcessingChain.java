@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered chain of {@link AudioProcessor} stages applied in place to the captured 16bit PCM
+ * before it is sent as audio_in. Each stage is timed separately, see {@link #getStats}.
+ */
+final class AudioProcessingChain {
+    private final AudioProcessor[] mStages;
+    private final long[] mStageNanos;
+    private final short[] mSamples;
+    private ByteBuffer mLastBuffer;
+    private ShortBuffer mLastShorts;
+    private long mProcessedSamples;
+
+    private AudioProcessingChain(final List<AudioProcessor> stages, final int maxBlockSamples) {
+        mStages = stages.toArray(new AudioProcessor[stages.size()]);
+        mStageNanos = new long[mStages.length];
+        mSamples = new short[maxBlockSamples];
+    }
+
+    /**
+     * Processes the 16bit little endian PCM between 0 and {@code length} of {@code pcm} in place.
+     * Reusing the same buffer for every block keeps this allocation free.
+     */
+    void process(final ByteBuffer pcm, final int length) {
+        if (pcm != mLastBuffer) {
+            mLastBuffer = pcm;
+            mLastShorts = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        }
+        final int count = Math.min(length / 2, mSamples.length);
+        mLastShorts.clear();
+        mLastShorts.get(mSamples, 0, count);
+        process(mSamples, count);
+        mLastShorts.clear();
+        mLastShorts.put(mSamples, 0, count);
+    }
+
+    void process(final short[] samples, final int count) {
+        for (int i = 0; i < mStages.length; i++) {
+            final long start = System.nanoTime();
+            mStages[i].process(samples, count);
+            mStageNanos[i] += System.nanoTime() - start;
+        }
+        mProcessedSamples += count;
+    }
+
+    void reset() {
+        for (final AudioProcessor stage : mStages) {
+            stage.reset();
+        }
+    }
+
+    /**
+     * Returns the processing time of each stage per second of audio since the last call.
+     */
+    String getStats(final int sampleRate) {
+        final StringBuilder stats = new StringBuilder();
+        for (int i = 0; i < mStages.length; i++) {
+            final double msPerSecond = mProcessedSamples == 0
+                    ? 0 : mStageNanos[i] / 1e6 * sampleRate / mProcessedSamples;
+            if (i > 0) {
+                stats.append(", ");
+            }
+            stats.append(mStages[i].getClass().getSimpleName())
+                    .append(String.format(" %.2fms/s", msPerSecond));
+            mStageNanos[i] = 0;
+        }
+        mProcessedSamples = 0;
+        return stats.toString();
+    }
+
+    static final class Builder {
+        private final List<AudioProcessor> mStages = new ArrayList<>();
+        private final int mMaxBlockSamples;
+
+        Builder(final int maxBlockSamples) {
+            mMaxBlockSamples = maxBlockSamples;
+        }
+
+        Builder add(final AudioProcessor stage) {
+            mStages.add(stage);
+            return this;
+        }
+
+        AudioProcessingChain build() {
+            return new AudioProcessingChain(mStages, mMaxBlockSamples);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * A stage of the capture processing chain, see {@link AudioProcessingChain}.
+ */
+interface AudioProcessor {
+    /**
+     * Processes {@code count} 16bit mono samples in place. Called once per captured block, from
+     * the capture thread only; implementations must not allocate.
+     */
+    void process(short[] samples, int count);
+
+    /**
+     * Clears the stage state, called when a new recording starts.
+     */
+    void reset();
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Fixed-point automatic gain control bringing the speech peak level towards a target.
+ *
+ * <p>The gain, in Q8, is updated once per block from a peak envelope and ramped linearly across
+ * the block. It drops quickly when the signal gets louder and rises slowly, and is left alone on
+ * blocks below the noise floor so background noise is not pumped up.
+ */
+final class AutomaticGainControl implements AudioProcessor {
+    private static final int UNITY_GAIN = 1 << 8;
+
+    private final int mTargetLevel;
+    private final int mMaxGain;
+    private final int mNoiseFloor;
+    private int mEnvelope;
+    private int mGain = UNITY_GAIN;
+
+    /**
+     * @param targetLevel peak amplitude aimed for
+     * @param maxGain     largest gain applied, in Q8
+     * @param noiseFloor  peak amplitude below which the gain is frozen
+     */
+    AutomaticGainControl(final int targetLevel, final int maxGain, final int noiseFloor) {
+        mTargetLevel = targetLevel;
+        mMaxGain = maxGain;
+        mNoiseFloor = noiseFloor;
+    }
+
+    @Override
+    public void process(final short[] samples, final int count) {
+        if (count == 0) {
+            return;
+        }
+        int peak = 0;
+        for (int i = 0; i < count; i++) {
+            final int value = samples[i];
+            peak = Math.max(peak, value < 0 ? -value : value);
+        }
+        // Fast attack, slow release envelope.
+        mEnvelope += peak > mEnvelope ? (peak - mEnvelope) >> 1 : (peak - mEnvelope) >> 4;
+
+        int targetGain = mGain;
+        if (mEnvelope > mNoiseFloor) {
+            targetGain = Math.max(UNITY_GAIN / 4,
+                    Math.min(mMaxGain, (mTargetLevel << 8) / mEnvelope));
+        }
+        if (targetGain > mGain) {
+            targetGain = mGain + Math.max(1, (targetGain - mGain) >> 3);
+        }
+        final int startGain = mGain;
+        for (int i = 0; i < count; i++) {
+            final int gain = startGain + (targetGain - startGain) * (i + 1) / count;
+            final int value = (samples[i] * gain) >> 8;
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+        mGain = targetGain;
+    }
+
+    @Override
+    public void reset() {
+        mEnvelope = 0;
+        mGain = UNITY_GAIN;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Delay-and-sum beamformer for a pair of microphones captured as interleaved 16bit little endian
+ * stereo PCM.
+ *
+ * <p>The inter-microphone delay of the dominant source is tracked with a normalized
+ * cross-correlation, refined to a fraction of a sample with a parabolic fit and smoothed over the
+ * blocks where the channels are loud and coherent enough. Both channels are then steered by half
+ * of that delay each with cubic Lagrange fractional delays, summed, and the mono result is
+ * written back to both channels in place. Buffers are sized once, so processing does not
+ * allocate.
+ */
+final class Beamformer {
+    private static final float SPEED_OF_SOUND_MM_PER_SEC = 343000f;
+    // Cubic interpolation needs one sample before and two after the delayed position.
+    private static final int INTERPOLATION_MARGIN = 2;
+    // Block energy per sample below which the direction is not updated.
+    private static final float MIN_ENERGY = 300f * 300f;
+    // Normalized correlation peak below which the direction is not updated.
+    private static final float MIN_COHERENCE = 0.4f;
+    private static final float DIRECTION_ADAPT_RATE = 0.2f;
+
+    private final float mMaxDelay;
+    private final int mMaxLag;
+    // Common delay applied to both channels, so that steering never needs future samples.
+    private final int mBaseDelay;
+    private final int mHistory;
+    private final int mMaxFrames;
+    private final float[] mLeft;
+    private final float[] mRight;
+    private final float[] mCorrelation;
+    private float mDelay;
+    private long mProcessNanos;
+    private long mProcessedFrames;
+
+    Beamformer(final int sampleRate, final int micSpacingMm, final int maxFrames) {
+        mMaxDelay = micSpacingMm * sampleRate / SPEED_OF_SOUND_MM_PER_SEC;
+        mMaxLag = (int) Math.ceil(mMaxDelay);
+        mBaseDelay = (int) Math.ceil(mMaxDelay / 2) + INTERPOLATION_MARGIN;
+        mHistory = Math.max(mBaseDelay + mMaxLag + INTERPOLATION_MARGIN, 2 * mMaxLag);
+        mMaxFrames = maxFrames;
+        mLeft = new float[mHistory + maxFrames];
+        mRight = new float[mHistory + maxFrames];
+        mCorrelation = new float[2 * mMaxLag + 1];
+    }
+
+    /**
+     * Beamforms the interleaved stereo frames in the {@code length} bytes of {@code pcm} from
+     * {@code offset}, in place.
+     */
+    void process(final ByteBuffer pcm, final int offset, final int length) {
+        final long start = System.nanoTime();
+        final int frames = length / 4;
+        for (int done = 0; done < frames; done += mMaxFrames) {
+            processChunk(pcm, offset + done * 4, Math.min(frames - done, mMaxFrames));
+        }
+        mProcessNanos += System.nanoTime() - start;
+        mProcessedFrames += frames;
+    }
+
+    private void processChunk(final ByteBuffer pcm, final int offset, final int frames) {
+        System.arraycopy(mLeft, frames, mLeft, 0, mHistory);
+        System.arraycopy(mRight, frames, mRight, 0, mHistory);
+        for (int i = 0; i < frames; i++) {
+            final int position = offset + i * 4;
+            mLeft[mHistory + i] = (short) ((pcm.get(position) & 0xff) | (pcm.get(position + 1) << 8));
+            mRight[mHistory + i] =
+                    (short) ((pcm.get(position + 2) & 0xff) | (pcm.get(position + 3) << 8));
+        }
+        updateDirection(frames);
+
+        final float leftDelay = mBaseDelay + mDelay / 2;
+        final float rightDelay = mBaseDelay - mDelay / 2;
+        for (int i = 0; i < frames; i++) {
+            final int n = mHistory + i;
+            final float sum = 0.5f * (delayed(mLeft, n, leftDelay) + delayed(mRight, n, rightDelay));
+            final short value = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    Math.round(sum)));
+            final int position = offset + i * 4;
+            pcm.put(position, (byte) value);
+            pcm.put(position + 1, (byte) (value >> 8));
+            pcm.put(position + 2, (byte) value);
+            pcm.put(position + 3, (byte) (value >> 8));
+        }
+    }
+
+    /**
+     * Estimates the delay of the right channel relative to the left one over the new frames.
+     */
+    private void updateDirection(final int frames) {
+        if (mMaxLag == 0) {
+            return;
+        }
+        float leftEnergy = 0;
+        float rightEnergy = 0;
+        for (int i = mHistory; i < mHistory + frames; i++) {
+            leftEnergy += mLeft[i] * mLeft[i];
+            rightEnergy += mRight[i] * mRight[i];
+        }
+        if (Math.min(leftEnergy, rightEnergy) < MIN_ENERGY * frames) {
+            return;
+        }
+        int peak = 0;
+        for (int lag = -mMaxLag; lag <= mMaxLag; lag++) {
+            float correlation = 0;
+            for (int i = mHistory; i < mHistory + frames; i++) {
+                correlation += mLeft[i - mMaxLag] * mRight[i - mMaxLag + lag];
+            }
+            mCorrelation[lag + mMaxLag] = correlation;
+            if (correlation > mCorrelation[peak]) {
+                peak = lag + mMaxLag;
+            }
+        }
+        if (mCorrelation[peak] < MIN_COHERENCE * (float) Math.sqrt(leftEnergy * rightEnergy)) {
+            return;
+        }
+        float delay = peak - mMaxLag;
+        if (peak > 0 && peak < mCorrelation.length - 1) {
+            final float before = mCorrelation[peak - 1];
+            final float after = mCorrelation[peak + 1];
+            final float curvature = before - 2 * mCorrelation[peak] + after;
+            if (curvature < 0) {
+                delay += 0.5f * (before - after) / curvature;
+            }
+        }
+        delay = Math.max(-mMaxDelay, Math.min(mMaxDelay, delay));
+        mDelay += DIRECTION_ADAPT_RATE * (delay - mDelay);
+    }
+
+    // Cubic Lagrange interpolation of x at n - delay.
+    static float delayed(final float[] x, final int n, final float delay) {
+        final float t = n - delay;
+        final int k = (int) Math.floor(t);
+        final float d = t - k;
+        final float dm1 = d - 1;
+        final float dm2 = d - 2;
+        final float dp1 = d + 1;
+        return -d * dm1 * dm2 / 6 * x[k - 1]
+                + dp1 * dm1 * dm2 / 2 * x[k]
+                - dp1 * d * dm2 / 2 * x[k + 1]
+                + dp1 * d * dm1 / 6 * x[k + 2];
+    }
+
+    /**
+     * Delay of the right channel relative to the left one, in samples.
+     */
+    float getDelay() {
+        return mDelay;
+    }
+
+    /**
+     * Returns the steering delay and the processing time per second of audio since the last call.
+     */
+    String getStats(final int sampleRate) {
+        final double msPerSecond = mProcessedFrames == 0
+                ? 0 : mProcessNanos / 1e6 * sampleRate / mProcessedFrames;
+        mProcessNanos = 0;
+        mProcessedFrames = 0;
+        return String.format("delay %.2f samples, %.2fms/s", mDelay, msPerSecond);
+    }
+}
@@ -27,22 +27,35 @@ import com.google.android.things.userdriver.UserDriverManager;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 class BreadboardDriver implements AutoCloseable {
     private static final String TAG = "VoiceHatDriver";
     // buffer of 0.05 sec of sample data at 48khz / 16bit.
     private static final int BUFFER_SIZE = 96000 / 20;
 
-    private I2sDevice mDevice;
+    private final String mI2sBus;
+    // Closed while the input is in standby.
+    private volatile I2sDevice mDevice;
     private final AudioFormat mAudioFormat;
+    // Null unless the format is stereo and the microphone spacing known.
+    private final Beamformer mBeamformer;
     private AudioInputUserDriver mAudioInputDriver;
 
-    BreadboardDriver(final String i2sBus, final AudioFormat audioFormat)
+    /**
+     * @param micSpacingMm distance between the two microphones, 0 when unknown to capture them
+     *                     without beamforming
+     */
+    BreadboardDriver(final String i2sBus, final AudioFormat audioFormat, final int micSpacingMm)
             throws IOException {
         final PeripheralManagerService pioService = new PeripheralManagerService();
+        mI2sBus = i2sBus;
         try {
             mDevice = pioService.openI2sDevice(i2sBus, audioFormat);
             mAudioFormat = audioFormat;
+            mBeamformer = audioFormat.getChannelCount() == 2 && micSpacingMm > 0
+                    ? new Beamformer(audioFormat.getSampleRate(), micSpacingMm, BUFFER_SIZE / 4)
+                    : null;
         } catch (final IOException e) {
             try {
                 close();
@@ -80,20 +93,57 @@ class BreadboardDriver implements AutoCloseable {
         }
     }
 
+    /**
+     * Closes the I2S device in standby and reopens it on wake.
+     */
+    private synchronized void setStandby(final boolean inStandby) throws IOException {
+        if (inStandby) {
+            if (mDevice != null) {
+                Log.d(TAG, "closing I2S device for standby");
+                mDevice.close();
+                mDevice = null;
+            }
+        } else if (mDevice == null) {
+            final long start = System.nanoTime();
+            mDevice = new PeripheralManagerService().openI2sDevice(mI2sBus, mAudioFormat);
+            Log.d(TAG, "reopened I2S device in "
+                    + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + "us");
+        }
+    }
+
     private class AudioInputUserDriver extends AudioInputDriver {
 
 
         @Override
         public void onStandbyChanged(final boolean b) {
             Log.d(TAG, "audio input driver standby changed:" + b);
+            if (b && mBeamformer != null) {
+                Log.d(TAG, "beamformer: " + mBeamformer.getStats(mAudioFormat.getSampleRate()));
+            }
+            try {
+                setStandby(b);
+            } catch (final IOException e) {
+                Log.e(TAG, "error during standby change:", e);
+            }
         }
 
         @Override
         public int read(final ByteBuffer byteBuffer, final int i) {
+            final I2sDevice device = mDevice;
+            if (device == null) {
+                return 0;
+            }
             try {
-                return mDevice.read(byteBuffer, i);
+                final int start = byteBuffer.position();
+                final int result = device.read(byteBuffer, i);
+                Trace.event(Trace.DRIVER_READ, result, i);
+                if (mBeamformer != null && result > 0) {
+                    mBeamformer.process(byteBuffer, start, result);
+                }
+                return result;
             } catch (final IOException e) {
                 Log.e(TAG, "error during read operation:", e);
+                Trace.dump(TAG);
                 return -1;
             }
         }
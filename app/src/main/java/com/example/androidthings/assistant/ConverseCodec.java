@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha1.AudioOut;
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+import com.google.protobuf.ByteString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.protobuf.lite.ProtoLiteUtils;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * {@code Converse} method with marshallers specialized for the audio frames, wire compatible with
+ * {@code embedded_assistant.proto}.
+ *
+ * <p>audio_in requests are written straight into the outbound gRPC buffer as their tag, length
+ * and data, with no protobuf builder or {@link ByteString}. Responses that only carry
+ * audio_out.audio_data are not parsed, their audio is a slice of the received message. Every
+ * other message goes through the generated javalite code.
+ *
+ * <p>One copy per message remains in each direction: an audio_in request copies the caller's
+ * audio, which is reused for the next block while the request may still be replayed, and a
+ * response is read out of the gRPC buffers into its own array, which the audio slice shares. The
+ * generated path copies each frame twice, into a {@link ByteString} and into the message bytes.
+ */
+final class ConverseCodec {
+    // ConverseRequest.audio_in, field 2, length delimited.
+    private static final int AUDIO_IN_TAG = (2 << 3) | 2;
+    // ConverseResponse.audio_out, field 3, length delimited.
+    private static final int AUDIO_OUT_TAG = (3 << 3) | 2;
+    // AudioOut.audio_data, field 1, length delimited.
+    private static final int AUDIO_DATA_TAG = (1 << 3) | 2;
+
+    private static final MethodDescriptor.Marshaller<ConverseRequest> REQUEST_MARSHALLER =
+            ProtoLiteUtils.marshaller(ConverseRequest.getDefaultInstance());
+    private static final MethodDescriptor.Marshaller<ConverseResponse> RESPONSE_MARSHALLER =
+            ProtoLiteUtils.marshaller(ConverseResponse.getDefaultInstance());
+
+    static final MethodDescriptor<Request, Response> METHOD_CONVERSE = MethodDescriptor.create(
+            EmbeddedAssistantGrpc.METHOD_CONVERSE.getType(),
+            EmbeddedAssistantGrpc.METHOD_CONVERSE.getFullMethodName(),
+            new RequestMarshaller(),
+            new ResponseMarshaller());
+
+    private ConverseCodec() {
+    }
+
+    /**
+     * Starts a {@code Converse} call on the channel and with the call options of {@code stub}.
+     */
+    static StreamObserver<Request> converse(final EmbeddedAssistantGrpc.EmbeddedAssistantStub stub,
+                                            final StreamObserver<Response> responseObserver) {
+        return ClientCalls.asyncBidiStreamingCall(
+                stub.getChannel().newCall(METHOD_CONVERSE, stub.getCallOptions()),
+                responseObserver);
+    }
+
+    /**
+     * A {@link ConverseRequest}, or the data of an audio_in request.
+     */
+    static final class Request {
+        private final ConverseRequest mMessage;
+        private final byte[] mAudioIn;
+
+        private Request(final ConverseRequest message, final byte[] audioIn) {
+            mMessage = message;
+            mAudioIn = audioIn;
+        }
+
+        static Request of(final ConverseRequest message) {
+            return new Request(message, null);
+        }
+
+        /**
+         * Copies the remaining bytes of {@code audioData} into an audio_in request.
+         */
+        static Request audioIn(final ByteBuffer audioData) {
+            final byte[] data = new byte[audioData.remaining()];
+            audioData.duplicate().get(data);
+            return new Request(null, data);
+        }
+
+        int getAudioInSize() {
+            return mAudioIn == null ? 0 : mAudioIn.length;
+        }
+    }
+
+    /**
+     * A {@link ConverseResponse}; audio_out responses only expose their audio data.
+     */
+    static final class Response {
+        private final ConverseResponse mMessage;
+        private final ByteBuffer mAudioData;
+
+        private Response(final ConverseResponse message, final ByteBuffer audioData) {
+            mMessage = message;
+            mAudioData = audioData;
+        }
+
+        ConverseResponse.ConverseResponseCase getConverseResponseCase() {
+            return mMessage == null
+                    ? ConverseResponse.ConverseResponseCase.AUDIO_OUT
+                    : mMessage.getConverseResponseCase();
+        }
+
+        /**
+         * Returns the parsed message of every case but {@code AUDIO_OUT}.
+         */
+        ConverseResponse getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * Returns a view of the audio_out data; it shares the copy of the received message and
+         * must not be modified.
+         */
+        ByteBuffer getAudioData() {
+            if (mAudioData != null) {
+                return mAudioData.duplicate();
+            }
+            return ByteBuffer.wrap(mMessage.getAudioOut().getAudioData().toByteArray());
+        }
+    }
+
+    private static final class RequestMarshaller implements MethodDescriptor.Marshaller<Request> {
+        @Override
+        public InputStream stream(final Request value) {
+            if (value.mAudioIn == null) {
+                return REQUEST_MARSHALLER.stream(value.mMessage);
+            }
+            return new AudioInStream(value.mAudioIn);
+        }
+
+        @Override
+        public Request parse(final InputStream stream) {
+            return Request.of(REQUEST_MARSHALLER.parse(stream));
+        }
+    }
+
+    private static final class ResponseMarshaller implements MethodDescriptor.Marshaller<Response> {
+        @Override
+        public InputStream stream(final Response value) {
+            final ConverseResponse message = value.mMessage != null ? value.mMessage
+                    : ConverseResponse.newBuilder()
+                            .setAudioOut(AudioOut.newBuilder()
+                                    .setAudioData(ByteString.copyFrom(value.getAudioData())))
+                            .build();
+            return RESPONSE_MARSHALLER.stream(message);
+        }
+
+        @Override
+        public Response parse(final InputStream stream) {
+            try {
+                final byte[] message = readFully(stream);
+                final ByteBuffer audioData = audioDataSlice(message);
+                if (audioData != null) {
+                    return new Response(null, audioData);
+                }
+                return new Response(ConverseResponse.parseFrom(message), null);
+            } catch (final IOException e) {
+                throw Status.INTERNAL.withDescription("invalid ConverseResponse").withCause(e)
+                        .asRuntimeException();
+            }
+        }
+    }
+
+    private static byte[] readFully(final InputStream stream) throws IOException {
+        if (stream instanceof KnownLength) {
+            final byte[] data = new byte[stream.available()];
+            int read = 0;
+            while (read < data.length) {
+                final int count = stream.read(data, read, data.length - read);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+            return data;
+        }
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[4096];
+        int count;
+        while ((count = stream.read(chunk)) >= 0) {
+            data.write(chunk, 0, count);
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Returns the audio_data of a message made of audio_out.audio_data only, or null.
+     */
+    private static ByteBuffer audioDataSlice(final byte[] message) {
+        if (message.length == 0 || message[0] != AUDIO_OUT_TAG) {
+            return null;
+        }
+        final int audioOutStart = skipVarint(message, 1);
+        if (audioOutStart < 0 || audioOutStart + readVarint(message, 1) != message.length
+                || audioOutStart == message.length || message[audioOutStart] != AUDIO_DATA_TAG) {
+            return null;
+        }
+        final int audioDataStart = skipVarint(message, audioOutStart + 1);
+        if (audioDataStart < 0
+                || audioDataStart + readVarint(message, audioOutStart + 1) != message.length) {
+            return null;
+        }
+        return ByteBuffer.wrap(message, audioDataStart, message.length - audioDataStart).slice();
+    }
+
+    // Returns the position after the varint at position, or -1 if it does not fit an int.
+    private static int skipVarint(final byte[] data, final int position) {
+        for (int i = position; i < data.length && i < position + 5; i++) {
+            if ((data[i] & 0x80) == 0) {
+                return i == position + 4 && (data[i] & 0xf8) != 0 ? -1 : i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // Must be called after skipVarint returned a position.
+    private static int readVarint(final byte[] data, final int position) {
+        int value = 0;
+        for (int i = position, shift = 0; ; i++, shift += 7) {
+            value |= (data[i] & 0x7f) << shift;
+            if ((data[i] & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Serialized audio_in request: its tag, the varint length and the data, drained in two
+     * writes.
+     */
+    private static final class AudioInStream extends InputStream implements Drainable, KnownLength {
+        private final byte[] mHeader = new byte[6];
+        private final int mHeaderLength;
+        private final byte[] mData;
+        private int mPosition;
+
+        AudioInStream(final byte[] data) {
+            mData = data;
+            int length = 0;
+            mHeader[length++] = (byte) AUDIO_IN_TAG;
+            int value = data.length;
+            while ((value & ~0x7f) != 0) {
+                mHeader[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mHeader[length++] = (byte) value;
+            mHeaderLength = length;
+        }
+
+        @Override
+        public int drainTo(final OutputStream target) throws IOException {
+            final int drained = available();
+            if (mPosition < mHeaderLength) {
+                target.write(mHeader, mPosition, mHeaderLength - mPosition);
+            }
+            final int dataPosition = Math.max(mPosition - mHeaderLength, 0);
+            target.write(mData, dataPosition, mData.length - dataPosition);
+            mPosition = mHeaderLength + mData.length;
+            return drained;
+        }
+
+        @Override
+        public int available() {
+            return mHeaderLength + mData.length - mPosition;
+        }
+
+        @Override
+        public int read() {
+            if (available() == 0) {
+                return -1;
+            }
+            final int position = mPosition++;
+            return (position < mHeaderLength
+                    ? mHeader[position] : mData[position - mHeaderLength]) & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            // Parsers reading into an array of the exact message size expect -1, not 0, at the end.
+            if (available() == 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int read = 0;
+            if (mPosition < mHeaderLength) {
+                final int count = Math.min(len, mHeaderLength - mPosition);
+                System.arraycopy(mHeader, mPosition, b, off, count);
+                mPosition += count;
+                read += count;
+            }
+            final int count = Math.min(len - read, available());
+            System.arraycopy(mData, mPosition - mHeaderLength, b, off + read, count);
+            mPosition += count;
+            return read + count;
+        }
+    }
+}
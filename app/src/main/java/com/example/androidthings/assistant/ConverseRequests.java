@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha1.AudioInConfig;
+import com.google.assistant.embedded.v1alpha1.AudioOutConfig;
+import com.google.assistant.embedded.v1alpha1.ConverseConfig;
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds the {@link ConverseRequest} messages streamed for a turn: one config request followed
+ * by audio_in requests.
+ */
+final class ConverseRequests {
+    private static final AudioInConfig.Encoding ENCODING_INPUT = AudioInConfig.Encoding.LINEAR16;
+    private static final AudioOutConfig.Encoding ENCODING_OUTPUT = AudioOutConfig.Encoding.LINEAR16;
+
+    private ConverseRequests() {
+    }
+
+    static ConverseRequest config(final int sampleRate) {
+        return ConverseRequest.newBuilder().setConfig(
+                ConverseConfig.newBuilder()
+                        .setAudioInConfig(AudioInConfig.newBuilder()
+                                .setEncoding(ENCODING_INPUT)
+                                .setSampleRateHertz(sampleRate)
+                                .build())
+                        .setAudioOutConfig(AudioOutConfig.newBuilder()
+                                .setEncoding(ENCODING_OUTPUT)
+                                .setSampleRateHertz(sampleRate)
+                                .build())
+                        .build()).build();
+    }
+
+    /**
+     * Copies the remaining bytes of {@code audioData} into an audio_in request.
+     */
+    static ConverseRequest audioIn(final ByteBuffer audioData) {
+        return ConverseRequest.newBuilder()
+                .setAudioIn(ByteString.copyFrom(audioData))
+                .build();
+    }
+}
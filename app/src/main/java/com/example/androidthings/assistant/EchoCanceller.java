@@ -0,0 +1,349 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Acoustic echo canceller removing our own playback from the captured audio.
+ *
+ * <p>The PCM written to the {@code AudioTrack} is fed to {@link #addReference} from the playback
+ * thread, and {@link #process} cleans the captured blocks in place on the capture thread. The
+ * echo path is modeled by a frequency domain NLMS filter (overlap-save, {@code blockSize} taps),
+ * after a bulk delay estimated by correlating the reference and capture envelopes. Adaptation is
+ * frozen during double talk. Nothing is allocated once constructed.
+ */
+final class EchoCanceller implements AudioProcessor {
+    // Envelope resolution used by the delay estimator.
+    private static final int SUBBLOCK_SIZE = 64;
+    // Envelope window correlated by the delay estimator.
+    private static final int ENVELOPE_WINDOW = 64;
+    // Blocks between two delay estimations.
+    private static final int ESTIMATE_INTERVAL_BLOCKS = 32;
+    private static final float MIN_DELAY_CORRELATION = 0.3f;
+    private static final float STEP_SIZE = 0.5f;
+    private static final float POWER_SMOOTHING = 0.9f;
+    // Geigel double talk detector: capture peak above this multiple of the reference peak.
+    private static final float DOUBLE_TALK_THRESHOLD = 2f;
+    // Mean absolute reference amplitude below which the block is considered silent.
+    private static final float SILENCE_LEVEL = 64f;
+
+    private final int mBlockSize;
+    private final int mMaxDelay;
+    private final Fft mFft;
+    private final float mRegularization;
+
+    // Reference samples, indexed on the capture timeline. Filled by the playback thread and
+    // drained or reset by the capture thread, all under mFifoLock: the producer writes from the
+    // read index, a drain in between would leave its samples to be read a whole FIFO later.
+    private final Object mFifoLock = new Object();
+    private final short[] mFifo;
+    private final int mFifoMask;
+    private long mFifoRead;
+    private long mFifoWrite;
+
+    // Reference history, indexed by the number of samples consumed.
+    private final float[] mHistory;
+    private long mHistoryCount;
+    private int mDelay;
+
+    // Envelopes for the delay estimator, one value per SUBBLOCK_SIZE samples.
+    private final float[] mRefEnvelope;
+    private final float[] mMicEnvelope;
+    private long mEnvelopeCount;
+    private int mBlocksSinceEstimate;
+    private boolean mDoubleTalkSinceEstimate;
+
+    // Frequency domain filter state.
+    private final float[] mWeightsRe;
+    private final float[] mWeightsIm;
+    private final float[] mPower;
+    private final float[] mXRe;
+    private final float[] mXIm;
+    private final float[] mTmpRe;
+    private final float[] mTmpIm;
+
+    // Statistics.
+    private double mEchoEnergy;
+    private double mResidualEnergy;
+
+    /**
+     * @param blockSize filter length and processing granularity, a power of two
+     * @param maxDelay  largest playback to capture bulk delay searched, in samples
+     */
+    EchoCanceller(final int blockSize, final int maxDelay) {
+        mBlockSize = blockSize;
+        mMaxDelay = maxDelay;
+        mFft = new Fft(2 * blockSize);
+        mRegularization = 2 * blockSize * SILENCE_LEVEL * SILENCE_LEVEL;
+
+        final int fifoSize = Integer.highestOneBit(4 * (maxDelay + blockSize) - 1) << 1;
+        mFifo = new short[fifoSize];
+        mFifoMask = fifoSize - 1;
+        mHistory = new float[maxDelay + 2 * blockSize];
+
+        final int envelopeSize = maxDelay / SUBBLOCK_SIZE + ENVELOPE_WINDOW;
+        mRefEnvelope = new float[envelopeSize];
+        mMicEnvelope = new float[envelopeSize];
+
+        final int fftSize = 2 * blockSize;
+        mWeightsRe = new float[fftSize];
+        mWeightsIm = new float[fftSize];
+        mPower = new float[fftSize];
+        mXRe = new float[fftSize];
+        mXIm = new float[fftSize];
+        mTmpRe = new float[fftSize];
+        mTmpIm = new float[fftSize];
+    }
+
+    /**
+     * Queues the 16bit little endian PCM between position and limit of {@code pcm}, as written to
+     * the playback track. Called from the playback thread; the buffer position is not changed.
+     */
+    void addReference(final ByteBuffer pcm) {
+        synchronized (mFifoLock) {
+            final long read = mFifoRead;
+            long write = Math.max(mFifoWrite, read);
+            for (int i = pcm.position(); i + 1 < pcm.limit(); i += 2) {
+                if (write - read >= mFifo.length) {
+                    break;
+                }
+                mFifo[(int) (write & mFifoMask)] =
+                        (short) ((pcm.get(i) & 0xff) | (pcm.get(i + 1) << 8));
+                write++;
+            }
+            mFifoWrite = write;
+        }
+    }
+
+    /**
+     * Removes the echo from {@code count} captured samples in place. Trailing samples not filling
+     * a whole block are left untouched.
+     */
+    @Override
+    public void process(final short[] samples, final int count) {
+        for (int offset = 0; offset + mBlockSize <= count; offset += mBlockSize) {
+            processBlock(samples, offset);
+        }
+    }
+
+    /**
+     * Drops the queued reference and restarts the statistics, e.g. when capture restarts.
+     */
+    @Override
+    public void reset() {
+        synchronized (mFifoLock) {
+            mFifoRead = Math.max(mFifoRead, mFifoWrite);
+            Arrays.fill(mFifo, (short) 0);
+        }
+        mEchoEnergy = 0;
+        mResidualEnergy = 0;
+    }
+
+    int getDelay() {
+        return mDelay;
+    }
+
+    /**
+     * Echo return loss enhancement over the blocks with an active reference, in dB.
+     */
+    double getErleDb() {
+        if (mResidualEnergy <= 0) {
+            return 0;
+        }
+        return 10 * Math.log10(mEchoEnergy / mResidualEnergy);
+    }
+
+    private void processBlock(final short[] samples, final int offset) {
+        final int n = mBlockSize;
+        final int fftSize = 2 * n;
+
+        // Consume one block of reference, slots nobody wrote to stay silent.
+        synchronized (mFifoLock) {
+            long read = mFifoRead;
+            for (int i = 0; i < n; i++, read++) {
+                final int slot = (int) (read & mFifoMask);
+                mHistory[(int) ((mHistoryCount + i) % mHistory.length)] = mFifo[slot];
+                mFifo[slot] = 0;
+            }
+            mFifoRead = read;
+        }
+        mHistoryCount += n;
+        updateEnvelopes(samples, offset);
+
+        // Reference aligned with the capture: the 2 blocks ending mDelay samples ago.
+        final long first = mHistoryCount - mDelay - fftSize;
+        float refPeak = 0;
+        float refLevel = 0;
+        for (int i = 0; i < fftSize; i++) {
+            final long index = first + i;
+            final float value = index < 0 ? 0 : mHistory[(int) (index % mHistory.length)];
+            mXRe[i] = value;
+            mXIm[i] = 0;
+            refPeak = Math.max(refPeak, Math.abs(value));
+            if (i >= n) {
+                refLevel += Math.abs(value);
+            }
+        }
+        mFft.transform(mXRe, mXIm, false);
+
+        // Echo estimate is the last block of the circular convolution.
+        for (int k = 0; k < fftSize; k++) {
+            mTmpRe[k] = mXRe[k] * mWeightsRe[k] - mXIm[k] * mWeightsIm[k];
+            mTmpIm[k] = mXRe[k] * mWeightsIm[k] + mXIm[k] * mWeightsRe[k];
+        }
+        mFft.transform(mTmpRe, mTmpIm, true);
+
+        final boolean referenceActive = refLevel / n > SILENCE_LEVEL;
+        boolean doubleTalk = false;
+        float micPeak = 0;
+        double micEnergy = 0;
+        double errorEnergy = 0;
+        for (int i = 0; i < n; i++) {
+            final float mic = samples[offset + i];
+            final float error = mic - mTmpRe[n + i];
+            micPeak = Math.max(micPeak, Math.abs(mic));
+            micEnergy += mic * mic;
+            errorEnergy += error * error;
+            samples[offset + i] =
+                    (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, error));
+            // Keep the error in the second half for the adaptation below.
+            mTmpRe[n + i] = error;
+        }
+        if (micPeak > DOUBLE_TALK_THRESHOLD * refPeak) {
+            // Near end speech, adapting now would diverge the filter.
+            mDoubleTalkSinceEstimate = true;
+            doubleTalk = true;
+        }
+        if (!referenceActive) {
+            return;
+        }
+        mEchoEnergy += micEnergy;
+        mResidualEnergy += errorEnergy;
+        if (doubleTalk) {
+            return;
+        }
+
+        // E = FFT([0, e]), gradient = conj(X) E / P, constrained to the first block.
+        for (int i = 0; i < n; i++) {
+            mTmpRe[i] = 0;
+            mTmpIm[i] = 0;
+            mTmpIm[n + i] = 0;
+        }
+        mFft.transform(mTmpRe, mTmpIm, false);
+        for (int k = 0; k < fftSize; k++) {
+            final float power = mXRe[k] * mXRe[k] + mXIm[k] * mXIm[k];
+            mPower[k] = POWER_SMOOTHING * mPower[k] + (1 - POWER_SMOOTHING) * power;
+            final float scale = STEP_SIZE / (mPower[k] + mRegularization);
+            final float gradRe = (mXRe[k] * mTmpRe[k] + mXIm[k] * mTmpIm[k]) * scale;
+            final float gradIm = (mXRe[k] * mTmpIm[k] - mXIm[k] * mTmpRe[k]) * scale;
+            mTmpRe[k] = gradRe;
+            mTmpIm[k] = gradIm;
+        }
+        mFft.transform(mTmpRe, mTmpIm, true);
+        for (int i = n; i < fftSize; i++) {
+            mTmpRe[i] = 0;
+            mTmpIm[i] = 0;
+        }
+        mFft.transform(mTmpRe, mTmpIm, false);
+        for (int k = 0; k < fftSize; k++) {
+            mWeightsRe[k] += mTmpRe[k];
+            mWeightsIm[k] += mTmpIm[k];
+        }
+    }
+
+    private void updateEnvelopes(final short[] samples, final int offset) {
+        final long blockStart = mHistoryCount - mBlockSize;
+        for (int sub = 0; sub < mBlockSize; sub += SUBBLOCK_SIZE) {
+            float ref = 0;
+            float mic = 0;
+            for (int i = sub; i < sub + SUBBLOCK_SIZE; i++) {
+                ref += Math.abs(mHistory[(int) ((blockStart + i) % mHistory.length)]);
+                mic += Math.abs(samples[offset + i]);
+            }
+            final int slot = (int) (mEnvelopeCount % mRefEnvelope.length);
+            mRefEnvelope[slot] = ref;
+            mMicEnvelope[slot] = mic;
+            mEnvelopeCount++;
+        }
+        if (++mBlocksSinceEstimate >= ESTIMATE_INTERVAL_BLOCKS
+                && mEnvelopeCount >= mRefEnvelope.length) {
+            mBlocksSinceEstimate = 0;
+            // Near end speech correlates with anything but the echo, a wrong estimate would
+            // reset the filter in the middle of a barge-in.
+            if (!mDoubleTalkSinceEstimate) {
+                estimateDelay();
+            }
+            mDoubleTalkSinceEstimate = false;
+        }
+    }
+
+    /**
+     * Finds the lag maximizing the normalized correlation between the capture envelope and the
+     * delayed reference envelope.
+     */
+    private void estimateDelay() {
+        final int size = mRefEnvelope.length;
+        final int maxLag = size - ENVELOPE_WINDOW;
+        float micMean = 0;
+        for (int j = 0; j < ENVELOPE_WINDOW; j++) {
+            micMean += mMicEnvelope[(int) ((mEnvelopeCount - 1 - j) % size)];
+        }
+        micMean /= ENVELOPE_WINDOW;
+
+        float bestCorrelation = MIN_DELAY_CORRELATION;
+        int bestLag = -1;
+        for (int lag = 0; lag <= maxLag; lag++) {
+            float refMean = 0;
+            for (int j = 0; j < ENVELOPE_WINDOW; j++) {
+                refMean += mRefEnvelope[(int) ((mEnvelopeCount - 1 - j - lag) % size)];
+            }
+            refMean /= ENVELOPE_WINDOW;
+            float cross = 0;
+            float refVar = 0;
+            float micVar = 0;
+            for (int j = 0; j < ENVELOPE_WINDOW; j++) {
+                final float mic = mMicEnvelope[(int) ((mEnvelopeCount - 1 - j) % size)] - micMean;
+                final float ref =
+                        mRefEnvelope[(int) ((mEnvelopeCount - 1 - j - lag) % size)] - refMean;
+                cross += mic * ref;
+                refVar += ref * ref;
+                micVar += mic * mic;
+            }
+            if (refVar <= 0 || micVar <= 0) {
+                continue;
+            }
+            final float correlation = cross / (float) Math.sqrt(refVar * micVar);
+            if (correlation > bestCorrelation) {
+                bestCorrelation = correlation;
+                bestLag = lag;
+            }
+        }
+        if (bestLag < 0) {
+            return;
+        }
+        // Leave one subblock of margin so the filter taps cover the estimate's uncertainty.
+        final int delay = Math.min(mMaxDelay, Math.max(0, (bestLag - 1) * SUBBLOCK_SIZE));
+        if (Math.abs(delay - mDelay) >= mBlockSize / 2) {
+            // The echo path moved out of the filter span, start over.
+            Arrays.fill(mWeightsRe, 0);
+            Arrays.fill(mWeightsIm, 0);
+        }
+        mDelay = delay;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * In-place radix-2 complex FFT of a fixed power of two size. Twiddle factors and the bit
+ * reversal table are computed once, so transforms do not allocate.
+ */
+final class Fft {
+    private final int mSize;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mReversed;
+
+    Fft(final int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        mSize = size;
+        mCos = new float[size / 2];
+        mSin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            mCos[i] = (float) Math.cos(-2 * Math.PI * i / size);
+            mSin[i] = (float) Math.sin(-2 * Math.PI * i / size);
+        }
+        mReversed = new int[size];
+        final int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            mReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Transforms {@code re}/{@code im} in place; the inverse transform is scaled by 1/size.
+     */
+    void transform(final float[] re, final float[] im, final boolean inverse) {
+        for (int i = 0; i < mSize; i++) {
+            final int j = mReversed[i];
+            if (j > i) {
+                float tmp = re[i];
+                re[i] = re[j];
+                re[j] = tmp;
+                tmp = im[i];
+                im[i] = im[j];
+                im[j] = tmp;
+            }
+        }
+        final float sign = inverse ? -1f : 1f;
+        for (int half = 1; half < mSize; half <<= 1) {
+            final int step = mSize / (2 * half);
+            for (int start = 0; start < mSize; start += 2 * half) {
+                for (int k = 0; k < half; k++) {
+                    final float wr = mCos[k * step];
+                    final float wi = sign * mSin[k * step];
+                    final int a = start + k;
+                    final int b = a + half;
+                    final float tr = re[b] * wr - im[b] * wi;
+                    final float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+        if (inverse) {
+            final float scale = 1f / mSize;
+            for (int i = 0; i < mSize; i++) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * First order fixed-point high-pass filter removing the DC offset and low frequency rumble of
+ * the microphones: {@code y[n] = x[n] - x[n-1] + a * y[n-1]}, with {@code a} in Q15.
+ */
+final class HighPassFilter implements AudioProcessor {
+    private final int mCoefficient;
+    private int mPreviousInput;
+    // Previous output in Q15.
+    private long mPreviousOutput;
+
+    HighPassFilter(final int cutoffHz, final int sampleRate) {
+        mCoefficient = (int) Math.round(32768 * (1 - 2 * Math.PI * cutoffHz / sampleRate));
+    }
+
+    @Override
+    public void process(final short[] samples, final int count) {
+        int previousInput = mPreviousInput;
+        long previousOutput = mPreviousOutput;
+        for (int i = 0; i < count; i++) {
+            final int input = samples[i];
+            previousOutput = ((long) (input - previousInput) << 15)
+                    + ((mCoefficient * previousOutput) >> 15);
+            previousInput = input;
+            final long output = previousOutput >> 15;
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, output));
+        }
+        mPreviousInput = previousInput;
+        mPreviousOutput = previousOutput;
+    }
+
+    @Override
+    public void reset() {
+        mPreviousInput = 0;
+        mPreviousOutput = 0;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hands-free activation: matches the MFCC frames of the capture stream against recorded keyword
+ * templates with a streaming subsequence DTW. It observes the samples and leaves them unchanged.
+ *
+ * <p>Each template costs O(frames * coefficients) per 10ms frame, so the load is bounded by the
+ * templates loaded, independently of how long the spotter runs. Templates are built from
+ * recordings with {@link KeywordTemplates}.
+ */
+final class KeywordSpotter implements AudioProcessor {
+    private static final String TAG = KeywordSpotter.class.getSimpleName();
+
+    // Mel filters, also the most cepstral coefficients a template can have.
+    static final int NUM_FILTERS = 26;
+    // Decay of the running cepstral mean, about 2 sec at 100 frames per sec.
+    private static final float CEPSTRAL_MEAN_DECAY = 0.005f;
+    // Leading frames of a recording taken as its background, 50ms.
+    private static final int BACKGROUND_FRAMES = 5;
+    // Frames ignored after a detection, 1 sec.
+    private static final int REFRACTORY_FRAMES = 100;
+
+    private final MfccExtractor mMfcc;
+    private final Template[] mTemplates;
+    private final float[] mFeatures;
+    private final float[] mCepstralMean;
+    private int mBackgroundFrames;
+    private int mRefractoryFrames;
+    private String mDetectedKeyword;
+
+    KeywordSpotter(final int sampleRate, final int numCoefficients,
+                   final List<Template> templates) {
+        mMfcc = new MfccExtractor(sampleRate, NUM_FILTERS, numCoefficients);
+        mTemplates = templates.toArray(new Template[templates.size()]);
+        mFeatures = new float[numCoefficients];
+        mCepstralMean = new float[numCoefficients];
+    }
+
+    /**
+     * Loads the templates from {@code path}, returns null when the asset does not exist.
+     */
+    static KeywordSpotter fromAssets(final AssetManager assets, final String path,
+                                     final int sampleRate) throws IOException {
+        final InputStream in;
+        try {
+            in = new BufferedInputStream(assets.open(path));
+        } catch (final FileNotFoundException e) {
+            Log.i(TAG, "no keyword templates in " + path + ", hands-free activation disabled");
+            return null;
+        }
+        try {
+            final List<Template> templates = KeywordTemplates.read(in);
+            Log.d(TAG, "loaded " + templates.size() + " keyword templates from " + path);
+            return new KeywordSpotter(sampleRate, templates.get(0).mFrames[0].length, templates);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the features of a whole recording as the spotter computes them in a stream, where
+     * the cepstral mean settled on the background: the recording has to start with a moment of
+     * it, before the keyword.
+     */
+    static float[][] features(final int sampleRate, final int numCoefficients,
+                              final short[] samples) {
+        final MfccExtractor mfcc = new MfccExtractor(sampleRate, NUM_FILTERS, numCoefficients);
+        final List<float[]> frames = new ArrayList<>();
+        final float[] mean = new float[numCoefficients];
+        int offset = 0;
+        while (offset < samples.length) {
+            offset += mfcc.append(samples, offset, samples.length - offset);
+            if (mfcc.isFrameReady()) {
+                final float[] frame = new float[numCoefficients];
+                mfcc.computeFrame(frame);
+                frames.add(frame);
+                if (frames.size() <= BACKGROUND_FRAMES) {
+                    for (int k = 0; k < numCoefficients; k++) {
+                        mean[k] += frame[k] / BACKGROUND_FRAMES;
+                    }
+                }
+            }
+        }
+        for (final float[] frame : frames) {
+            normalize(frame, mean);
+        }
+        return frames.toArray(new float[frames.size()][]);
+    }
+
+    @Override
+    public void process(final short[] samples, final int count) {
+        int offset = 0;
+        while (offset < count) {
+            offset += mMfcc.append(samples, offset, count - offset);
+            if (mMfcc.isFrameReady()) {
+                mMfcc.computeFrame(mFeatures);
+                onFrame();
+            }
+        }
+    }
+
+    private void onFrame() {
+        if (mBackgroundFrames < BACKGROUND_FRAMES) {
+            // Starts the running mean from the background, as for the templates.
+            mBackgroundFrames++;
+            for (int k = 0; k < mFeatures.length; k++) {
+                mCepstralMean[k] += (mFeatures[k] - mCepstralMean[k]) / mBackgroundFrames;
+            }
+            return;
+        }
+        normalize(mFeatures, mCepstralMean);
+        if (mRefractoryFrames > 0) {
+            mRefractoryFrames--;
+            return;
+        }
+        for (final Template template : mTemplates) {
+            if (template.match(mFeatures) < template.mThreshold) {
+                mDetectedKeyword = template.mKeyword;
+                mRefractoryFrames = REFRACTORY_FRAMES;
+                for (final Template other : mTemplates) {
+                    other.reset();
+                }
+                return;
+            }
+        }
+    }
+
+    // Subtracts the running cepstral mean, after updating it with the frame.
+    private static void normalize(final float[] features, final float[] mean) {
+        for (int k = 0; k < features.length; k++) {
+            mean[k] += CEPSTRAL_MEAN_DECAY * (features[k] - mean[k]);
+            features[k] -= mean[k];
+        }
+    }
+
+    /**
+     * Returns the keyword detected since the last call, or null.
+     */
+    String pollDetection() {
+        final String keyword = mDetectedKeyword;
+        mDetectedKeyword = null;
+        return keyword;
+    }
+
+    @Override
+    public void reset() {
+        mMfcc.reset();
+        for (final Template template : mTemplates) {
+            template.reset();
+        }
+        mDetectedKeyword = null;
+    }
+
+    /**
+     * A keyword template and the last DTW column of its match against the stream.
+     */
+    static final class Template {
+        final String mKeyword;
+        final float mThreshold;
+        final float[][] mFrames;
+        private float[] mCost;
+        private float[] mNextCost;
+        private int[] mLength;
+        private int[] mNextLength;
+
+        Template(final String keyword, final float threshold, final float[][] frames) {
+            mKeyword = keyword;
+            mThreshold = threshold;
+            mFrames = frames;
+            mCost = new float[frames.length];
+            mNextCost = new float[frames.length];
+            mLength = new int[frames.length];
+            mNextLength = new int[frames.length];
+            reset();
+        }
+
+        /**
+         * Extends the alignments with {@code features} and returns the mean frame distance of
+         * the best one ending on the last template frame.
+         *
+         * <p>The alignment may start on any stream frame. Each step advances one stream frame
+         * and zero to two template frames, bounding the speed ratio to [1/2, 2].
+         */
+        float match(final float[] features) {
+            final int maxLength = 2 * mFrames.length;
+            for (int j = 0; j < mFrames.length; j++) {
+                final float distance = distance(features, mFrames[j]);
+                float cost = Float.POSITIVE_INFINITY;
+                int length = 0;
+                if (j == 0) {
+                    cost = distance;
+                    length = 1;
+                } else {
+                    for (int step = 0; step <= 2 && step <= j; step++) {
+                        final int from = j - step;
+                        if (mLength[from] == 0 || mLength[from] >= maxLength) {
+                            continue;
+                        }
+                        final float candidate = mCost[from] + distance;
+                        if (candidate / (mLength[from] + 1) < cost / Math.max(length, 1)) {
+                            cost = candidate;
+                            length = mLength[from] + 1;
+                        }
+                    }
+                }
+                mNextCost[j] = cost;
+                mNextLength[j] = length;
+            }
+            final float[] swapCost = mCost;
+            mCost = mNextCost;
+            mNextCost = swapCost;
+            final int[] swapLength = mLength;
+            mLength = mNextLength;
+            mNextLength = swapLength;
+            final int last = mFrames.length - 1;
+            return mLength[last] == 0 ? Float.POSITIVE_INFINITY : mCost[last] / mLength[last];
+        }
+
+        /**
+         * Returns the best score of this template over {@code features}, a whole recording.
+         */
+        float score(final float[][] features) {
+            reset();
+            float best = Float.POSITIVE_INFINITY;
+            for (final float[] frame : features) {
+                best = Math.min(best, match(frame));
+            }
+            reset();
+            return best;
+        }
+
+        void reset() {
+            Arrays.fill(mCost, Float.POSITIVE_INFINITY);
+            Arrays.fill(mLength, 0);
+        }
+
+        // Euclidean distance without c0, which mostly tracks the loudness.
+        private static float distance(final float[] a, final float[] b) {
+            float sum = 0;
+            for (int k = 1; k < a.length; k++) {
+                final float d = a[k] - b[k];
+                sum += d * d;
+            }
+            return (float) Math.sqrt(sum);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The keyword templates asset of {@link KeywordSpotter}, and how to build it from recordings.
+ *
+ * <p>The asset is a big endian {@link DataInputStream} of: int version (1), int number of
+ * coefficients, int number of templates, then per template its keyword (UTF), its detection
+ * threshold (float, mean frame distance), its number of frames (int) and the frames (floats),
+ * computed by {@link KeywordSpotter#features}.
+ */
+final class KeywordTemplates {
+    static final int NUM_COEFFICIENTS = 13;
+    // Detection threshold over the worst score of a template on the other recordings.
+    static final float DEFAULT_MARGIN = 1.1f;
+
+    private static final int VERSION = 1;
+    // Bounds of an asset, past them it is corrupt: 3s keywords at 100 frames per second.
+    private static final int MAX_TEMPLATES = 64;
+    private static final int MAX_FRAMES = 300;
+    // Share of the peak energy over the background from which a frame is part of the keyword.
+    private static final float SPEECH_LEVEL = 0.25f;
+
+    private KeywordTemplates() {
+    }
+
+    /**
+     * Returns a template per recording of {@code keyword}, 16 bit samples at {@code sampleRate}.
+     *
+     * <p>When {@code threshold} is not positive, the threshold of each template is {@code margin}
+     * times its worst score on the other recordings, which then all get detected. This needs at
+     * least two recordings.
+     */
+    static List<KeywordSpotter.Template> build(final String keyword,
+                                               final List<short[]> recordings,
+                                               final int sampleRate, final float margin,
+                                               final float threshold) {
+        if (recordings.isEmpty() || (threshold <= 0 && recordings.size() < 2)) {
+            throw new IllegalArgumentException(recordings.size() + " recordings of " + keyword
+                    + ", leave-one-out thresholds need at least 2");
+        }
+        final List<float[][]> features = new ArrayList<>(recordings.size());
+        for (final short[] recording : recordings) {
+            final float[][] frames = trim(
+                    KeywordSpotter.features(sampleRate, NUM_COEFFICIENTS, recording));
+            if (frames.length == 0) {
+                throw new IllegalArgumentException("no keyword in a recording of " + keyword);
+            }
+            features.add(frames);
+        }
+        final List<KeywordSpotter.Template> templates = new ArrayList<>(features.size());
+        for (int i = 0; i < features.size(); i++) {
+            float templateThreshold = threshold;
+            if (threshold <= 0) {
+                final KeywordSpotter.Template candidate =
+                        new KeywordSpotter.Template(keyword, 0, features.get(i));
+                float worst = 0;
+                for (int j = 0; j < features.size(); j++) {
+                    if (j != i) {
+                        worst = Math.max(worst, candidate.score(features.get(j)));
+                    }
+                }
+                templateThreshold = margin * worst;
+            }
+            templates.add(new KeywordSpotter.Template(keyword, templateThreshold,
+                    features.get(i)));
+        }
+        return templates;
+    }
+
+    // Keeps the frames from the first to the last one louder than the background.
+    private static float[][] trim(final float[][] frames) {
+        float peak = 0;
+        for (final float[] frame : frames) {
+            peak = Math.max(peak, frame[0]);
+        }
+        int first = 0;
+        int last = frames.length - 1;
+        while (first <= last && frames[first][0] < SPEECH_LEVEL * peak) {
+            first++;
+        }
+        while (last >= first && frames[last][0] < SPEECH_LEVEL * peak) {
+            last--;
+        }
+        return Arrays.copyOfRange(frames, first, last + 1);
+    }
+
+    /**
+     * Reads an asset written by {@link #write}.
+     *
+     * @throws IOException if it is truncated, of another version or out of bounds.
+     */
+    static List<KeywordSpotter.Template> read(final InputStream stream) throws IOException {
+        final DataInputStream in = new DataInputStream(stream);
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported keyword templates version: " + version);
+        }
+        final int numCoefficients =
+                readCount(in, "coefficients", KeywordSpotter.NUM_FILTERS);
+        final int count = readCount(in, "templates", MAX_TEMPLATES);
+        final List<KeywordSpotter.Template> templates = new ArrayList<>(count);
+        for (int t = 0; t < count; t++) {
+            final String keyword = in.readUTF();
+            final float threshold = in.readFloat();
+            if (!(threshold >= 0) || Float.isInfinite(threshold)) {
+                throw new IOException("invalid threshold of keyword template " + t + ": "
+                        + threshold);
+            }
+            final float[][] frames =
+                    new float[readCount(in, "frames", MAX_FRAMES)][numCoefficients];
+            for (final float[] frame : frames) {
+                for (int k = 0; k < numCoefficients; k++) {
+                    frame[k] = in.readFloat();
+                }
+            }
+            templates.add(new KeywordSpotter.Template(keyword, threshold, frames));
+        }
+        return templates;
+    }
+
+    private static int readCount(final DataInputStream in, final String name, final int max)
+            throws IOException {
+        final int count = in.readInt();
+        if (count <= 0 || count > max) {
+            throw new IOException(count + " keyword template " + name + ", expected 1 to "
+                    + max);
+        }
+        return count;
+    }
+
+    static void write(final OutputStream stream, final List<KeywordSpotter.Template> templates)
+            throws IOException {
+        final DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(VERSION);
+        out.writeInt(templates.get(0).mFrames[0].length);
+        out.writeInt(templates.size());
+        for (final KeywordSpotter.Template template : templates) {
+            out.writeUTF(template.mKeyword);
+            out.writeFloat(template.mThreshold);
+            out.writeInt(template.mFrames.length);
+            for (final float[] frame : template.mFrames) {
+                for (final float value : frame) {
+                    out.writeFloat(value);
+                }
+            }
+        }
+        out.flush();
+    }
+}
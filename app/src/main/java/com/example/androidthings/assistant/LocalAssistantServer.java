@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+
+/**
+ * In-process gRPC server hosting a {@link LocalAssistantService}, used in place of
+ * {@code embeddedassistant.googleapis.com} when {@code BuildConfig.USE_LOCAL_ASSISTANT} is set.
+ */
+class LocalAssistantServer implements AutoCloseable {
+    private static final String TAG = LocalAssistantServer.class.getSimpleName();
+
+    private final String mName;
+    private final LocalAssistantService mService;
+    private Server mServer;
+
+    LocalAssistantServer(final String name, final LocalAssistantService service) {
+        mName = name;
+        mService = service;
+    }
+
+    /**
+     * Starts a server replying to every turn with a scripted answer, sized and shaped by the
+     * {@code LOCAL_ASSISTANT_*} build config fields.
+     */
+    static LocalAssistantServer startDefault(final String name, final int sampleRate)
+            throws IOException {
+        final LocalAssistantService service = new LocalAssistantService(
+                LocalAssistantService.scriptedReply("what time is it", sampleRate,
+                        BuildConfig.LOCAL_ASSISTANT_REPLY_MS),
+                defaultConditions().build(),
+                BuildConfig.LOCAL_ASSISTANT_RANDOM_SEED);
+        // 16bit mono audio_in.
+        service.setEndOfUtteranceBytes(
+                2 * sampleRate / 1000 * BuildConfig.LOCAL_ASSISTANT_END_OF_UTTERANCE_MS);
+        final LocalAssistantServer server = new LocalAssistantServer(name, service);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Returns a builder preset with the {@code LOCAL_ASSISTANT_*} build config fields.
+     */
+    static LocalAssistantService.NetworkConditions.Builder defaultConditions() {
+        return new LocalAssistantService.NetworkConditions.Builder()
+                .setRoundTripTimeMs(BuildConfig.LOCAL_ASSISTANT_RTT_MS)
+                .setJitterMs(BuildConfig.LOCAL_ASSISTANT_JITTER_MS)
+                .setThroughputBytesPerSec(BuildConfig.LOCAL_ASSISTANT_THROUGHPUT_BYTES_PER_SEC);
+    }
+
+    void start() throws IOException {
+        Log.d(TAG, "starting local assistant server: " + mName);
+        mServer = InProcessServerBuilder.forName(mName)
+                .addService(mService)
+                .build()
+                .start();
+    }
+
+    LocalAssistantService getService() {
+        return mService;
+    }
+
+    /**
+     * Returns a new channel to this server; no call credentials are needed.
+     */
+    ManagedChannel newChannel() {
+        return InProcessChannelBuilder.forName(mName).build();
+    }
+
+    @Override
+    public void close() {
+        if (mServer != null) {
+            mServer.shutdownNow();
+            mServer = null;
+        }
+        mService.shutdown();
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+
+import com.google.assistant.embedded.v1alpha1.AudioOut;
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.ConverseResult;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Local implementation of the {@code EmbeddedAssistant.Converse} service.
+ *
+ * <p>Like the real service, it ends the utterance itself once it received a set amount of
+ * audio, while the request stream is still open, or else once the client half-closes it. It then
+ * answers with an {@code END_OF_UTTERANCE} event followed by a scripted {@code RESULT}/
+ * {@code AUDIO_OUT} sequence, which can be replaced, e.g. by a long reply to barge in on. Every
+ * response is delayed according to the current {@link NetworkConditions}, so client latency can
+ * be measured offline and reproducibly.
+ */
+class LocalAssistantService extends EmbeddedAssistantGrpc.EmbeddedAssistantImplBase {
+    private static final String TAG = LocalAssistantService.class.getSimpleName();
+
+    // 0.05 sec of 16bit mono audio at 16khz.
+    private static final int DEFAULT_CHUNK_SIZE = 1600;
+
+    private volatile List<ConverseResponse> mScript;
+    // 0 ends the utterance only when the client half-closes.
+    private volatile int mEndOfUtteranceBytes;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private volatile NetworkConditions mConditions;
+    private final Random mRandom;
+    private final AtomicInteger mFaultCount = new AtomicInteger();
+    private final AtomicInteger mCallCount = new AtomicInteger();
+    private final AtomicInteger mCancelledCallCount = new AtomicInteger();
+
+    LocalAssistantService(final List<ConverseResponse> script, final NetworkConditions conditions,
+                          final long seed) {
+        setScript(script);
+        mConditions = conditions;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Replaces the reply of the calls started from now on, see {@link #scriptedReply}.
+     */
+    void setScript(final List<ConverseResponse> script) {
+        mScript = Collections.unmodifiableList(new ArrayList<>(script));
+    }
+
+    /**
+     * Ends the utterance of the calls started from now on once they sent {@code bytes} of
+     * audio_in, without waiting for the client to half-close; 0 waits for it.
+     */
+    void setEndOfUtteranceBytes(final int bytes) {
+        mEndOfUtteranceBytes = bytes;
+    }
+
+    /**
+     * Replaces the network conditions applied to calls started from now on.
+     */
+    void setNetworkConditions(final NetworkConditions conditions) {
+        mFaultCount.set(0);
+        mConditions = conditions;
+    }
+
+    /**
+     * Returns the number of {@code converse} calls received.
+     */
+    int getCallCount() {
+        return mCallCount.get();
+    }
+
+    /**
+     * Returns the number of {@code converse} calls the client cancelled before they ended.
+     */
+    int getCancelledCallCount() {
+        return mCancelledCallCount.get();
+    }
+
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Builds a reply script answering {@code requestText} with {@code durationMs} of a 440hz tone.
+     */
+    static List<ConverseResponse> scriptedReply(final String requestText, final int sampleRate,
+                                                final int durationMs) {
+        final List<ConverseResponse> script = new ArrayList<>();
+        script.add(ConverseResponse.newBuilder()
+                .setResult(ConverseResult.newBuilder()
+                        .setSpokenRequestText(requestText)
+                        .build())
+                .build());
+        final int totalSamples = sampleRate * durationMs / 1000;
+        final byte[] chunk = new byte[DEFAULT_CHUNK_SIZE];
+        int sample = 0;
+        while (sample < totalSamples) {
+            final int count = Math.min(DEFAULT_CHUNK_SIZE / 2, totalSamples - sample);
+            for (int i = 0; i < count; i++, sample++) {
+                final short value =
+                        (short) (8000 * Math.sin(2 * Math.PI * 440 * sample / sampleRate));
+                chunk[2 * i] = (byte) value;
+                chunk[2 * i + 1] = (byte) (value >> 8);
+            }
+            script.add(ConverseResponse.newBuilder()
+                    .setAudioOut(AudioOut.newBuilder()
+                            .setAudioData(ByteString.copyFrom(chunk, 0, 2 * count))
+                            .build())
+                    .build());
+        }
+        return script;
+    }
+
+    @Override
+    public StreamObserver<ConverseRequest> converse(
+            final StreamObserver<ConverseResponse> responseObserver) {
+        final NetworkConditions conditions = mConditions;
+        final List<ConverseResponse> script = mScript;
+        final int endOfUtteranceBytes = mEndOfUtteranceBytes;
+        mCallCount.incrementAndGet();
+        return new StreamObserver<ConverseRequest>() {
+            private int mRequestCount;
+            private int mAudioInBytes;
+            private boolean mReplied;
+            private volatile boolean mDone;
+
+            {
+                // Unlike onError, also called once the request stream was closed.
+                ((ServerCallStreamObserver<ConverseResponse>) responseObserver)
+                        .setOnCancelHandler(() -> {
+                            mCancelledCallCount.incrementAndGet();
+                            mDone = true;
+                        });
+            }
+
+            @Override
+            public void onNext(final ConverseRequest value) {
+                if (mDone) {
+                    return;
+                }
+                mRequestCount++;
+                if (conditions.mErrorCode != null
+                        && mRequestCount == conditions.mErrorAfterRequests
+                        && nextFloat() < conditions.mErrorRate
+                        && takeFault(conditions)) {
+                    mDone = true;
+                    mExecutor.schedule(() -> responseObserver.onError(
+                            Status.fromCode(conditions.mErrorCode)
+                                    .withDescription("injected by local assistant")
+                                    .asRuntimeException()),
+                            conditions.mRoundTripTimeMs / 2, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (value.getConverseRequestCase()
+                        == ConverseRequest.ConverseRequestCase.AUDIO_IN) {
+                    mAudioInBytes += value.getAudioIn().size();
+                    if (endOfUtteranceBytes > 0 && mAudioInBytes >= endOfUtteranceBytes) {
+                        reply();
+                    }
+                }
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+                Log.d(TAG, "client cancelled converse: " + Status.fromThrowable(t));
+                mDone = true;
+            }
+
+            @Override
+            public void onCompleted() {
+                if (!mDone) {
+                    reply();
+                }
+            }
+
+            // Ends the utterance and plays the script, once per call.
+            private void reply() {
+                if (mReplied) {
+                    return;
+                }
+                mReplied = true;
+                if (conditions.mStallRate > 0 && nextFloat() < conditions.mStallRate
+                        && takeFault(conditions)) {
+                    // Never answer, until the client cancels the call or gives up waiting.
+                    Log.d(TAG, "stalling converse");
+                    return;
+                }
+                long delayMs = conditions.mRoundTripTimeMs + nextJitter(conditions);
+                schedule(ConverseResponse.newBuilder()
+                        .setEventType(ConverseResponse.EventType.END_OF_UTTERANCE)
+                        .build(), delayMs);
+                for (final ConverseResponse response : script) {
+                    if (conditions.mThroughputBytesPerSec > 0) {
+                        delayMs += 1000L * response.getSerializedSize()
+                                / conditions.mThroughputBytesPerSec;
+                    }
+                    delayMs += nextJitter(conditions);
+                    schedule(response, delayMs);
+                }
+                mExecutor.schedule(() -> {
+                    if (!mDone) {
+                        mDone = true;
+                        responseObserver.onCompleted();
+                    }
+                }, delayMs, TimeUnit.MILLISECONDS);
+            }
+
+            private void schedule(final ConverseResponse response, final long delayMs) {
+                // The executor is single threaded and non-decreasing delays keep the script order.
+                mExecutor.schedule(() -> {
+                    if (!mDone) {
+                        responseObserver.onNext(response);
+                    }
+                }, delayMs, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    private boolean takeFault(final NetworkConditions conditions) {
+        return mFaultCount.getAndIncrement() < conditions.mMaxFaults;
+    }
+
+    private long nextJitter(final NetworkConditions conditions) {
+        if (conditions.mJitterMs <= 0) {
+            return 0;
+        }
+        synchronized (mRandom) {
+            return mRandom.nextInt(conditions.mJitterMs + 1);
+        }
+    }
+
+    private float nextFloat() {
+        synchronized (mRandom) {
+            return mRandom.nextFloat();
+        }
+    }
+
+    /**
+     * Latency, bandwidth and failure shaping applied by the {@link LocalAssistantService}.
+     */
+    static final class NetworkConditions {
+        final int mRoundTripTimeMs;
+        final int mJitterMs;
+        final int mThroughputBytesPerSec;
+        final Status.Code mErrorCode;
+        final int mErrorAfterRequests;
+        final float mErrorRate;
+        final float mStallRate;
+        final int mMaxFaults;
+
+        private NetworkConditions(final Builder builder) {
+            mRoundTripTimeMs = builder.mRoundTripTimeMs;
+            mJitterMs = builder.mJitterMs;
+            mThroughputBytesPerSec = builder.mThroughputBytesPerSec;
+            mErrorCode = builder.mErrorCode;
+            mErrorAfterRequests = builder.mErrorAfterRequests;
+            mErrorRate = builder.mErrorRate;
+            mStallRate = builder.mStallRate;
+            mMaxFaults = builder.mMaxFaults;
+        }
+
+        static final class Builder {
+            private int mRoundTripTimeMs;
+            private int mJitterMs;
+            private int mThroughputBytesPerSec;
+            private Status.Code mErrorCode;
+            private int mErrorAfterRequests;
+            private float mErrorRate;
+            private float mStallRate;
+            private int mMaxFaults = Integer.MAX_VALUE;
+
+            Builder setRoundTripTimeMs(final int roundTripTimeMs) {
+                mRoundTripTimeMs = roundTripTimeMs;
+                return this;
+            }
+
+            /**
+             * Adds a uniformly distributed delay of up to {@code jitterMs} to every response.
+             */
+            Builder setJitterMs(final int jitterMs) {
+                mJitterMs = jitterMs;
+                return this;
+            }
+
+            /**
+             * Caps the downstream throughput; 0 means unlimited.
+             */
+            Builder setThroughputBytesPerSec(final int throughputBytesPerSec) {
+                mThroughputBytesPerSec = throughputBytesPerSec;
+                return this;
+            }
+
+            /**
+             * Fails a fraction {@code rate} of the calls with {@code code} once they have
+             * received {@code afterRequests} requests.
+             */
+            Builder setError(final Status.Code code, final int afterRequests, final float rate) {
+                mErrorCode = code;
+                mErrorAfterRequests = afterRequests;
+                mErrorRate = rate;
+                return this;
+            }
+
+            /**
+             * Leaves a fraction {@code rate} of the calls without any response once their
+             * request stream ended.
+             */
+            Builder setStallRate(final float rate) {
+                mStallRate = rate;
+                return this;
+            }
+
+            /**
+             * Stops injecting errors and stalls once {@code maxFaults} were injected.
+             */
+            Builder setMaxFaults(final int maxFaults) {
+                mMaxFaults = maxFaults;
+                return this;
+            }
+
+            NetworkConditions build() {
+                return new NetworkConditions(this);
+            }
+        }
+    }
+}
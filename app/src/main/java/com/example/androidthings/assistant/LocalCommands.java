@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Device commands recognized locally in the transcript of a turn, so that they run as soon as
+ * the {@code RESULT} arrives instead of after the spoken reply.
+ *
+ * <p>Phrases are compiled into a trie of lower case words. A transcript only matches a phrase
+ * spelling all of its words, so that "don't turn on the light" or a question mentioning a
+ * command does not run it; case and punctuation are ignored. {@link #NUMBER} in a phrase matches
+ * a number such as "5" or "five", which is passed to the action.
+ */
+final class LocalCommands {
+    static final String NUMBER = "#";
+
+    private static final List<String> NUMBER_WORDS = Arrays.asList("zero", "one", "two", "three",
+            "four", "five", "six", "seven", "eight", "nine", "ten");
+
+    interface Action {
+        /**
+         * @param number the number matched by {@link #NUMBER}, or -1.
+         */
+        void run(int number) throws IOException;
+    }
+
+    private final Node mRoot;
+
+    private LocalCommands(final Node root) {
+        mRoot = root;
+    }
+
+    /**
+     * Returns the command the whole {@code transcript} spells, or null.
+     */
+    Match match(final String transcript) {
+        Node node = mRoot;
+        int number = -1;
+        for (final String word : tokenize(transcript)) {
+            Node next = node.mChildren.get(word);
+            if (next == null) {
+                final int value = parseNumber(word);
+                if (value >= 0) {
+                    next = node.mChildren.get(NUMBER);
+                    number = value;
+                }
+            }
+            if (next == null) {
+                return null;
+            }
+            node = next;
+        }
+        return node.mCommand == null ? null : new Match(node.mCommand, number);
+    }
+
+    private static String[] tokenize(final String text) {
+        final String trimmed = text.toLowerCase(Locale.US).replaceAll("[^a-z0-9#]+", " ").trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split(" ");
+    }
+
+    private static int parseNumber(final String word) {
+        if (!word.isEmpty() && word.length() <= 4 && word.chars().allMatch(Character::isDigit)) {
+            return Integer.parseInt(word);
+        }
+        return NUMBER_WORDS.indexOf(word);
+    }
+
+    static final class Builder {
+        private final Node mRoot = new Node();
+
+        /**
+         * Registers {@code phrase}; when {@code suppressAudio} is set, the spoken reply of the
+         * turn is not played once the action ran.
+         */
+        Builder add(final String phrase, final boolean suppressAudio, final Action action) {
+            Node node = mRoot;
+            for (final String word : tokenize(phrase)) {
+                Node next = node.mChildren.get(word);
+                if (next == null) {
+                    next = new Node();
+                    node.mChildren.put(word, next);
+                }
+                node = next;
+            }
+            if (node == mRoot || node.mCommand != null) {
+                throw new IllegalArgumentException("empty or duplicate phrase: " + phrase);
+            }
+            node.mCommand = new Command(phrase, suppressAudio, action);
+            return this;
+        }
+
+        LocalCommands build() {
+            return new LocalCommands(mRoot);
+        }
+    }
+
+    /**
+     * A command found in a transcript, with the number it matched.
+     */
+    static final class Match {
+        private final Command mCommand;
+        private final int mNumber;
+
+        private Match(final Command command, final int number) {
+            mCommand = command;
+            mNumber = number;
+        }
+
+        String getPhrase() {
+            return mCommand.mPhrase;
+        }
+
+        boolean suppressesAudio() {
+            return mCommand.mSuppressAudio;
+        }
+
+        void run() throws IOException {
+            mCommand.mAction.run(mNumber);
+        }
+    }
+
+    private static final class Command {
+        final String mPhrase;
+        final boolean mSuppressAudio;
+        final Action mAction;
+
+        Command(final String phrase, final boolean suppressAudio, final Action action) {
+            mPhrase = phrase;
+            mSuppressAudio = suppressAudio;
+            mAction = action;
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> mChildren = new HashMap<>();
+        Command mCommand;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.Arrays;
+
+/**
+ * Streaming MFCC front end: 25ms Hamming windowed frames every 10ms, a mel filterbank over the
+ * power spectrum and a DCT of the log energies. All tables and buffers are preallocated, so
+ * feeding samples does not allocate.
+ */
+final class MfccExtractor {
+    private static final float PRE_EMPHASIS = 0.97f;
+    private static final float LOG_FLOOR = 1e-10f;
+
+    private final int mFrameSize;
+    private final int mHopSize;
+    private final int mNumCoefficients;
+    private final Fft mFft;
+    private final float[] mWindow;
+    private final float[] mFrame;
+    private final float[] mRe;
+    private final float[] mIm;
+    // Triangular mel filters as a first bin and the weights of consecutive bins.
+    private final int[] mFilterStart;
+    private final float[][] mFilterWeights;
+    private final float[] mFilterEnergies;
+    // DCT-II basis, mNumCoefficients rows of mFilterEnergies.length.
+    private final float[][] mDct;
+    private int mFrameFill;
+    private float mLastSample;
+
+    MfccExtractor(final int sampleRate, final int numFilters, final int numCoefficients) {
+        mFrameSize = sampleRate / 40;
+        mHopSize = sampleRate / 100;
+        mNumCoefficients = numCoefficients;
+        mFft = new Fft(Integer.highestOneBit(mFrameSize - 1) << 1);
+        final int fftSize = mFft.size();
+        mWindow = new float[mFrameSize];
+        for (int i = 0; i < mFrameSize; i++) {
+            mWindow[i] = (float) (0.54 - 0.46 * Math.cos(2 * Math.PI * i / (mFrameSize - 1)));
+        }
+        mFrame = new float[mFrameSize];
+        mRe = new float[fftSize];
+        mIm = new float[fftSize];
+
+        final double maxMel = toMel(sampleRate / 2.0);
+        final int[] edges = new int[numFilters + 2];
+        for (int i = 0; i < edges.length; i++) {
+            final double hz = fromMel(maxMel * i / (numFilters + 1));
+            edges[i] = (int) Math.floor((fftSize + 1) * hz / sampleRate);
+        }
+        mFilterStart = new int[numFilters];
+        mFilterWeights = new float[numFilters][];
+        for (int f = 0; f < numFilters; f++) {
+            final int left = edges[f];
+            final int center = Math.max(edges[f + 1], left + 1);
+            final int right = Math.max(edges[f + 2], center + 1);
+            mFilterStart[f] = left;
+            mFilterWeights[f] = new float[right - left];
+            for (int bin = left; bin < right; bin++) {
+                mFilterWeights[f][bin - left] = bin < center
+                        ? (float) (bin - left) / (center - left)
+                        : (float) (right - bin) / (right - center);
+            }
+        }
+        mFilterEnergies = new float[numFilters];
+        mDct = new float[numCoefficients][numFilters];
+        for (int k = 0; k < numCoefficients; k++) {
+            for (int f = 0; f < numFilters; f++) {
+                mDct[k][f] = (float) Math.cos(Math.PI * k * (f + 0.5) / numFilters);
+            }
+        }
+    }
+
+    private static double toMel(final double hz) {
+        return 2595 * Math.log10(1 + hz / 700);
+    }
+
+    private static double fromMel(final double mel) {
+        return 700 * (Math.pow(10, mel / 2595) - 1);
+    }
+
+    int getNumCoefficients() {
+        return mNumCoefficients;
+    }
+
+    /**
+     * Buffers up to a frame of {@code samples} from {@code offset}; returns how many were
+     * consumed. Call {@link #computeFrame} whenever {@link #isFrameReady} afterwards.
+     */
+    int append(final short[] samples, final int offset, final int count) {
+        final int consumed = Math.min(count, mFrameSize - mFrameFill);
+        for (int i = 0; i < consumed; i++) {
+            final float sample = samples[offset + i];
+            mFrame[mFrameFill++] = sample - PRE_EMPHASIS * mLastSample;
+            mLastSample = sample;
+        }
+        return consumed;
+    }
+
+    boolean isFrameReady() {
+        return mFrameFill == mFrameSize;
+    }
+
+    /**
+     * Writes the cepstral coefficients of the buffered frame to {@code out} and advances by a hop.
+     */
+    void computeFrame(final float[] out) {
+        for (int i = 0; i < mFrameSize; i++) {
+            mRe[i] = mFrame[i] * mWindow[i];
+        }
+        Arrays.fill(mRe, mFrameSize, mRe.length, 0f);
+        Arrays.fill(mIm, 0f);
+        mFft.transform(mRe, mIm, false);
+
+        for (int f = 0; f < mFilterEnergies.length; f++) {
+            final float[] weights = mFilterWeights[f];
+            final int start = mFilterStart[f];
+            float energy = 0;
+            for (int i = 0; i < weights.length; i++) {
+                final float re = mRe[start + i];
+                final float im = mIm[start + i];
+                energy += weights[i] * (re * re + im * im);
+            }
+            mFilterEnergies[f] = (float) Math.log(Math.max(energy, LOG_FLOOR));
+        }
+        for (int k = 0; k < mNumCoefficients; k++) {
+            final float[] basis = mDct[k];
+            float coefficient = 0;
+            for (int f = 0; f < basis.length; f++) {
+                coefficient += basis[f] * mFilterEnergies[f];
+            }
+            out[k] = coefficient;
+        }
+
+        System.arraycopy(mFrame, mHopSize, mFrame, 0, mFrameSize - mHopSize);
+        mFrameFill = mFrameSize - mHopSize;
+    }
+
+    void reset() {
+        mFrameFill = 0;
+        mLastSample = 0;
+    }
+}
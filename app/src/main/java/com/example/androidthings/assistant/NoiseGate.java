@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Fixed-point noise gate attenuating the blocks between words.
+ *
+ * <p>The gate opens when the mean block level exceeds {@code openLevel} and closes once it stayed
+ * under {@code closeLevel} for {@code holdBlocks} blocks. The Q15 gain ramps sample by sample
+ * towards unity or {@code floorGain}, so opening and closing do not click.
+ */
+final class NoiseGate implements AudioProcessor {
+    private static final int UNITY_GAIN = Short.MAX_VALUE;
+    // Per sample gain steps, opening in ~2ms and closing in ~20ms at 16khz.
+    private static final int ATTACK_STEP = UNITY_GAIN / 32;
+    private static final int RELEASE_STEP = UNITY_GAIN / 320;
+
+    private final int mOpenLevel;
+    private final int mCloseLevel;
+    private final int mHoldBlocks;
+    private final int mFloorGain;
+    private boolean mOpen;
+    private int mQuietBlocks;
+    private int mGain;
+
+    /**
+     * @param floorGain gain applied while closed, in Q15
+     */
+    NoiseGate(final int openLevel, final int closeLevel, final int holdBlocks,
+              final int floorGain) {
+        mOpenLevel = openLevel;
+        mCloseLevel = closeLevel;
+        mHoldBlocks = holdBlocks;
+        mFloorGain = floorGain;
+        mGain = floorGain;
+    }
+
+    @Override
+    public void process(final short[] samples, final int count) {
+        if (count == 0) {
+            return;
+        }
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += Math.abs(samples[i]);
+        }
+        final int level = (int) (sum / count);
+        if (level > mOpenLevel) {
+            mOpen = true;
+            mQuietBlocks = 0;
+        } else if (mOpen && level < mCloseLevel && ++mQuietBlocks > mHoldBlocks) {
+            mOpen = false;
+        }
+
+        final int target = mOpen ? UNITY_GAIN : mFloorGain;
+        int gain = mGain;
+        for (int i = 0; i < count; i++) {
+            if (gain < target) {
+                gain = Math.min(target, gain + ATTACK_STEP);
+            } else if (gain > target) {
+                gain = Math.max(target, gain - RELEASE_STEP);
+            }
+            samples[i] = (short) ((samples[i] * gain) >> 15);
+        }
+        mGain = gain;
+    }
+
+    @Override
+    public void reset() {
+        mOpen = false;
+        mQuietBlocks = 0;
+        mGain = mFloorGain;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Recovery actions of the {@link PipelineWatchdog} stages. They run on the watchdog thread, only
+ * unblock what is stuck there and hand the rebuild over to the assistant thread, where the turn
+ * they were detected for may have been superseded in the meantime.
+ */
+final class PipelineRecovery {
+    /**
+     * Rebuilds of the pipeline, run on the assistant thread unless stated otherwise.
+     */
+    interface Actions {
+        /**
+         * Stops the recorder to unblock a stuck read; runs on the watchdog thread.
+         *
+         * @return false when there is no recorder to rebuild.
+         */
+        boolean stopCapture();
+
+        void rebuildCapture();
+
+        /**
+         * Gives up the current turn and reconnects the assistant channel.
+         */
+        void restartNetwork();
+
+        void rebuildPlayback();
+    }
+
+    private final TurnStateMachine mTurns;
+    private final Executor mAssistantExecutor;
+    private final Actions mActions;
+    // A capture still stuck a threshold later is stopped again, but rebuilt once.
+    private final AtomicBoolean mCaptureRebuildPending = new AtomicBoolean();
+
+    PipelineRecovery(final TurnStateMachine turns, final Executor assistantExecutor,
+                     final Actions actions) {
+        mTurns = turns;
+        mAssistantExecutor = assistantExecutor;
+        mActions = actions;
+    }
+
+    void recoverCapture() {
+        if (!mActions.stopCapture() || !mCaptureRebuildPending.compareAndSet(false, true)) {
+            return;
+        }
+        mAssistantExecutor.execute(() -> {
+            mCaptureRebuildPending.set(false);
+            mActions.rebuildCapture();
+        });
+    }
+
+    /**
+     * The stalled turn is given up unless a new one replaced it.
+     */
+    void recoverNetwork() {
+        final int turnId = mTurns.getTurnId();
+        mAssistantExecutor.execute(() -> {
+            if (mTurns.isCurrent(turnId)) {
+                mActions.restartNetwork();
+            }
+        });
+    }
+
+    /**
+     * The writes do not block, the track merely stopped consuming audio.
+     */
+    void recoverPlayback() {
+        mAssistantExecutor.execute(mActions::rebuildPlayback);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects the pipeline stages that stopped making progress and rebuilds them.
+ *
+ * <p>A stage reports progress through its {@link Stage} counter while it is active, e.g. the
+ * capture stage after every read. When an active stage did not progress for its stall threshold,
+ * its recovery action runs on the watchdog thread; it must unblock the stuck thread and rebuild
+ * the stage. The time from the stall detection to the next progress is logged as the recovery
+ * time.
+ */
+final class PipelineWatchdog {
+    private static final String TAG = PipelineWatchdog.class.getSimpleName();
+
+    private final ScheduledExecutorService mScheduler;
+    private final long mCheckPeriodMs;
+    private final List<Stage> mStages = new ArrayList<>();
+    private ScheduledFuture<?> mCheck;
+
+    PipelineWatchdog(final ScheduledExecutorService scheduler, final long checkPeriodMs) {
+        mScheduler = scheduler;
+        mCheckPeriodMs = checkPeriodMs;
+    }
+
+    /**
+     * Adds a stage; must be called before {@link #start}.
+     */
+    Stage addStage(final String name, final long stallThresholdMs, final Runnable recovery) {
+        final Stage stage = new Stage(name, TimeUnit.MILLISECONDS.toNanos(stallThresholdMs),
+                recovery);
+        mStages.add(stage);
+        return stage;
+    }
+
+    void start() {
+        mCheck = mScheduler.scheduleWithFixedDelay(this::check, mCheckPeriodMs, mCheckPeriodMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (mCheck != null) {
+            mCheck.cancel(false);
+            mCheck = null;
+        }
+    }
+
+    String getStats() {
+        final StringBuilder stats = new StringBuilder();
+        for (final Stage stage : mStages) {
+            if (stats.length() > 0) {
+                stats.append(", ");
+            }
+            stats.append(stage.mName).append(": ").append(stage.mStalls).append(" stalls");
+            if (stage.mStalls > 0) {
+                stats.append(", last recovered in ").append(stage.mLastRecoveryMs).append("ms");
+            }
+        }
+        return stats.toString();
+    }
+
+    private void check() {
+        final long now = System.nanoTime();
+        for (final Stage stage : mStages) {
+            stage.check(now);
+        }
+    }
+
+    /**
+     * Progress reporting of one stage, callable from any thread.
+     */
+    static final class Stage {
+        private final String mName;
+        private final long mStallThresholdNanos;
+        private final Runnable mRecovery;
+        private volatile long mProgress;
+        private volatile boolean mActive;
+        // Only accessed on the watchdog thread.
+        private long mCheckedProgress = -1;
+        private long mCheckedNanos;
+        private long mStallDetectedNanos;
+        private long mRecoveryNanos;
+        private int mStalls;
+        private long mLastRecoveryMs;
+
+        private Stage(final String name, final long stallThresholdNanos, final Runnable recovery) {
+            mName = name;
+            mStallThresholdNanos = stallThresholdNanos;
+            mRecovery = recovery;
+        }
+
+        /**
+         * Marks the stage as expected to progress from now on.
+         */
+        void begin() {
+            mProgress++;
+            mActive = true;
+        }
+
+        void progress() {
+            mProgress++;
+        }
+
+        void end() {
+            mActive = false;
+            mProgress++;
+        }
+
+        private void check(final long now) {
+            final long progress = mProgress;
+            if (progress != mCheckedProgress) {
+                if (mStallDetectedNanos != 0) {
+                    mLastRecoveryMs = TimeUnit.NANOSECONDS.toMillis(now - mStallDetectedNanos);
+                    mStallDetectedNanos = 0;
+                    Log.i(TAG, mName + " recovered in " + mLastRecoveryMs + "ms");
+                }
+                mCheckedProgress = progress;
+                mCheckedNanos = now;
+                return;
+            }
+            // A stage still stuck a threshold after its recovery is rebuilt again.
+            if (!mActive || now - Math.max(mCheckedNanos, mRecoveryNanos) < mStallThresholdNanos) {
+                return;
+            }
+            if (mStallDetectedNanos == 0) {
+                mStalls++;
+                mStallDetectedNanos = now;
+                Trace.dump(TAG);
+            }
+            mRecoveryNanos = now;
+            Log.w(TAG, mName + " stalled for "
+                    + TimeUnit.NANOSECONDS.toMillis(now - mCheckedNanos) + "ms, rebuilding it");
+            mRecovery.run();
+        }
+    }
+}
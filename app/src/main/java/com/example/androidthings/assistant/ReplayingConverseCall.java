@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * A single assistant turn that survives transient stream failures.
+ *
+ * <p>The audio sent during the turn is kept in a bounded buffer. When an attempt fails with a
+ * retryable status before any response reached the {@link Listener}, a new {@code converse} call
+ * is opened with the same config, the buffered audio is replayed and live streaming continues on
+ * the new call. Optionally, when no response arrived {@code hedgeDelayMs} after the request
+ * stream was closed, a second attempt is started in parallel and the first one to respond wins.
+ * Note that a hedged query may be executed twice by the server.
+ *
+ * <p>The turn fails with {@code DEADLINE_EXCEEDED} when no response arrived
+ * {@code firstResponseTimeoutMs} after it started. The responses are not bounded, as the listener
+ * may play a long reply in real time.
+ */
+class ReplayingConverseCall {
+    private static final String TAG = ReplayingConverseCall.class.getSimpleName();
+
+    /**
+     * Receives the responses of the winning attempt only, along with the call they belong to.
+     */
+    interface Listener {
+        void onResponse(ReplayingConverseCall call, ConverseCodec.Response response);
+
+        void onError(ReplayingConverseCall call, Throwable t);
+
+        void onCompleted(ReplayingConverseCall call);
+    }
+
+    private final EmbeddedAssistantGrpc.EmbeddedAssistantStub mStub;
+    private final ConverseCodec.Request mConfig;
+    private final int mMaxBufferedBytes;
+    private final int mMaxAttempts;
+    private final long mHedgeDelayMs;
+    private final long mFirstResponseTimeoutMs;
+    private final ScheduledExecutorService mScheduler;
+    private final Listener mListener;
+
+    // Guarded by this.
+    private final ArrayDeque<ConverseCodec.Request> mBuffer = new ArrayDeque<>();
+    private final List<Attempt> mLiveAttempts = new ArrayList<>(2);
+    private int mBufferedBytes;
+    private boolean mBufferOverflowed;
+    private int mAttemptCount;
+    private Attempt mWinner;
+    private boolean mFinished;
+    private boolean mDone;
+    private long mFinishNanos;
+    private ScheduledFuture<?> mFirstResponseTimeout;
+
+    /**
+     * @param hedgeDelayMs           0 disables hedging
+     * @param firstResponseTimeoutMs 0 waits for the first response without a bound
+     */
+    ReplayingConverseCall(final EmbeddedAssistantGrpc.EmbeddedAssistantStub stub,
+                          final ConverseRequest config, final int maxBufferedBytes,
+                          final int maxAttempts, final long hedgeDelayMs,
+                          final long firstResponseTimeoutMs,
+                          final ScheduledExecutorService scheduler, final Listener listener) {
+        mStub = stub;
+        mConfig = ConverseCodec.Request.of(config);
+        mMaxBufferedBytes = maxBufferedBytes;
+        mMaxAttempts = maxAttempts;
+        mHedgeDelayMs = hedgeDelayMs;
+        mFirstResponseTimeoutMs = firstResponseTimeoutMs;
+        mScheduler = scheduler;
+        mListener = listener;
+    }
+
+    /**
+     * Returns true for the statuses a dropped or reset HTTP/2 stream surfaces as.
+     */
+    static boolean isRetryable(final Status status) {
+        switch (status.getCode()) {
+            case UNAVAILABLE:
+            case INTERNAL:
+            case UNKNOWN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    synchronized void start() {
+        startAttempt();
+        if (mFirstResponseTimeoutMs > 0) {
+            mFirstResponseTimeout = mScheduler.schedule(this::onFirstResponseTimeout,
+                    mFirstResponseTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the remaining bytes of {@code audioData} to every live attempt.
+     */
+    synchronized void sendAudio(final ByteBuffer audioData) {
+        if (mDone) {
+            return;
+        }
+        final ConverseCodec.Request request = ConverseCodec.Request.audioIn(audioData);
+        if (!mBufferOverflowed) {
+            mBufferedBytes += request.getAudioInSize();
+            if (mBufferedBytes > mMaxBufferedBytes) {
+                Log.w(TAG, "replay buffer full, retries disabled for this turn");
+                mBufferOverflowed = true;
+                mBuffer.clear();
+            } else {
+                mBuffer.add(request);
+            }
+        }
+        for (final Attempt attempt : mLiveAttempts) {
+            attempt.mRequestObserver.onNext(request);
+        }
+    }
+
+    /**
+     * Closes the request stream, the turn then waits for the assistant response.
+     */
+    synchronized void finish() {
+        if (mDone || mFinished) {
+            return;
+        }
+        mFinished = true;
+        mFinishNanos = System.nanoTime();
+        for (final Attempt attempt : mLiveAttempts) {
+            attempt.mRequestObserver.onCompleted();
+        }
+        if (mHedgeDelayMs > 0) {
+            mScheduler.schedule(this::maybeHedge, mHedgeDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Cancels every live attempt; the listener is not notified.
+     */
+    synchronized void cancel() {
+        if (mDone) {
+            return;
+        }
+        end();
+    }
+
+    private synchronized void maybeHedge() {
+        if (mDone || mWinner != null || mBufferOverflowed || mAttemptCount >= mMaxAttempts
+                || mLiveAttempts.size() != 1) {
+            return;
+        }
+        Log.i(TAG, "no response after " + mHedgeDelayMs + "ms, starting hedged attempt");
+        startAttempt();
+    }
+
+    // Must be called with the lock held.
+    private void startAttempt() {
+        mAttemptCount++;
+        final Attempt attempt = new Attempt(mAttemptCount);
+        mLiveAttempts.add(attempt);
+        attempt.mContext.run(() ->
+                attempt.mRequestObserver =
+                        ConverseCodec.converse(mStub, attempt.mResponseObserver));
+        attempt.mRequestObserver.onNext(mConfig);
+        for (final ConverseCodec.Request request : mBuffer) {
+            attempt.mRequestObserver.onNext(request);
+        }
+        if (mFinished) {
+            attempt.mRequestObserver.onCompleted();
+        }
+    }
+
+    // Must be called with the lock held.
+    private void end() {
+        mDone = true;
+        cancelAttemptsExcept(null);
+        mBuffer.clear();
+        mBufferedBytes = 0;
+        cancelFirstResponseTimeout();
+    }
+
+    // Must be called with the lock held.
+    private void cancelFirstResponseTimeout() {
+        if (mFirstResponseTimeout != null) {
+            mFirstResponseTimeout.cancel(false);
+            mFirstResponseTimeout = null;
+        }
+    }
+
+    private void onFirstResponseTimeout() {
+        synchronized (this) {
+            if (mDone || mWinner != null) {
+                return;
+            }
+            Log.w(TAG, "no response after " + mFirstResponseTimeoutMs + "ms, "
+                    + mAttemptCount + " attempts");
+            end();
+        }
+        mListener.onError(this, Status.DEADLINE_EXCEEDED
+                .withDescription("no response after " + mFirstResponseTimeoutMs + "ms")
+                .asRuntimeException());
+    }
+
+    // Must be called with the lock held.
+    private void cancelAttemptsExcept(final Attempt survivor) {
+        for (final Attempt attempt : mLiveAttempts) {
+            if (attempt != survivor) {
+                attempt.mContext.cancel(null);
+            }
+        }
+        mLiveAttempts.clear();
+        if (survivor != null) {
+            mLiveAttempts.add(survivor);
+        }
+    }
+
+    private boolean claim(final Attempt attempt) {
+        synchronized (this) {
+            if (mDone || !mLiveAttempts.contains(attempt)) {
+                return false;
+            }
+            if (mWinner == null) {
+                mWinner = attempt;
+                if (mFinished) {
+                    Log.i(TAG, "first response after "
+                            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mFinishNanos)
+                            + "ms from attempt " + attempt.mNumber + "/" + mAttemptCount);
+                }
+                cancelAttemptsExcept(attempt);
+                cancelFirstResponseTimeout();
+            }
+            return mWinner == attempt;
+        }
+    }
+
+    private void onAttemptError(final Attempt attempt, final Throwable t) {
+        final Status status = Status.fromThrowable(t);
+        synchronized (this) {
+            if (mDone || !mLiveAttempts.remove(attempt)) {
+                return;
+            }
+            if (mWinner == null && isRetryable(status)) {
+                if (!mLiveAttempts.isEmpty()) {
+                    Log.w(TAG, "attempt " + attempt.mNumber + " failed, hedged attempt continues: "
+                            + status);
+                    return;
+                }
+                if (!mBufferOverflowed && mAttemptCount < mMaxAttempts) {
+                    Log.w(TAG, "attempt " + attempt.mNumber + " failed, replaying "
+                            + mBufferedBytes + " bytes: " + status);
+                    startAttempt();
+                    return;
+                }
+            }
+            end();
+        }
+        mListener.onError(this, t);
+    }
+
+    private void onAttemptCompleted(final Attempt attempt) {
+        synchronized (this) {
+            if (mDone || !mLiveAttempts.remove(attempt)) {
+                return;
+            }
+            end();
+        }
+        mListener.onCompleted(this);
+    }
+
+    private class Attempt {
+        final int mNumber;
+        final Context.CancellableContext mContext = Context.current().withCancellation();
+        StreamObserver<ConverseCodec.Request> mRequestObserver;
+        final StreamObserver<ConverseCodec.Response> mResponseObserver =
+                new StreamObserver<ConverseCodec.Response>() {
+            @Override
+            public void onNext(final ConverseCodec.Response value) {
+                if (claim(Attempt.this)) {
+                    mListener.onResponse(ReplayingConverseCall.this, value);
+                }
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+                onAttemptError(Attempt.this, t);
+            }
+
+            @Override
+            public void onCompleted() {
+                onAttemptCompleted(Attempt.this);
+            }
+        };
+
+        Attempt(final int number) {
+            mNumber = number;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the independent initialization tasks of an assistant service concurrently, off the main
+ * thread, logging how long each of them took.
+ */
+final class ServiceStartup implements AutoCloseable {
+    private static final int THREADS = 3;
+
+    /**
+     * An initialization step, e.g. opening a peripheral.
+     */
+    interface Task {
+        void run() throws IOException;
+    }
+
+    private final String mTag;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS);
+    private volatile boolean mCancelled;
+
+    ServiceStartup(final String tag) {
+        mTag = tag;
+    }
+
+    CompletableFuture<Void> run(final String name, final Task task) {
+        return CompletableFuture.runAsync(() -> runTask(name, task), mExecutor);
+    }
+
+    /**
+     * Runs {@code task} once {@code dependency} completed successfully.
+     */
+    CompletableFuture<Void> runAfter(final CompletableFuture<Void> dependency, final String name,
+                                     final Task task) {
+        return dependency.thenRunAsync(() -> runTask(name, task), mExecutor);
+    }
+
+    @Override
+    public void close() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Skips the tasks not started yet and waits up to {@code timeoutMs} for the running ones, so
+     * that nothing is torn down while it is being opened.
+     *
+     * @return whether all the tasks are done.
+     */
+    boolean cancel(final long timeoutMs) throws InterruptedException {
+        mCancelled = true;
+        mExecutor.shutdown();
+        return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void runTask(final String name, final Task task) {
+        if (mCancelled) {
+            throw new CancellationException("startup task " + name + " cancelled");
+        }
+        final long start = System.nanoTime();
+        try {
+            task.run();
+        } catch (final IOException e) {
+            throw new CompletionException(e);
+        }
+        Log.d(mTag, "startup task " + name + " took "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Binary trace of the audio hot paths, cheap enough to stay enabled: each thread records its
+ * last events (an id, a timestamp and two arguments) in its own fixed size ring, without locks or
+ * allocations. The rings are only decoded to text when dumped, e.g. by
+ * {@code adb shell dumpsys activity service VoiceHatAssistantService} or after an error.
+ *
+ * <p>Pooled threads come and go, so a new thread takes over the ring of a dead one, and at most
+ * {@link #MAX_RINGS} rings exist; the events of threads beyond them are dropped.
+ */
+final class Trace {
+    // Event ids, see EVENT_FORMATS for their arguments.
+    static final int CAPTURE_READ = 0;
+    static final int AUDIO_IN_SENT = 1;
+    static final int AUDIO_OUT_RECEIVED = 2;
+    static final int PLAYBACK_WRITTEN = 3;
+    static final int DRIVER_READ = 4;
+    static final int DRIVER_WRITE = 5;
+
+    private static final String[] EVENT_FORMATS = {
+            "capture read: %d bytes, turn %d",
+            "audio_in sent: %d bytes, turn %d",
+            "audio_out received: %d bytes, turn %d",
+            "playback written: %d bytes in %dns",
+            "driver read: %d of %d bytes",
+            "driver write: %d of %d bytes",
+    };
+
+    // Events kept per thread, a power of two.
+    private static final int CAPACITY = 512;
+    private static final int FIELDS = 4;
+    static final int MAX_RINGS = 32;
+
+    // Only grows, under its own lock.
+    private static final List<Ring> sRings = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger sUntracedThreads = new AtomicInteger();
+    // Null for the threads beyond MAX_RINGS.
+    private static final ThreadLocal<Ring> sThreadRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            final Thread thread = Thread.currentThread();
+            synchronized (sRings) {
+                for (final Ring ring : sRings) {
+                    if (!ring.isOwnerAlive()) {
+                        ring.setOwner(thread);
+                        return ring;
+                    }
+                }
+                if (sRings.size() < MAX_RINGS) {
+                    final Ring ring = new Ring();
+                    ring.setOwner(thread);
+                    sRings.add(ring);
+                    return ring;
+                }
+            }
+            sUntracedThreads.incrementAndGet();
+            return null;
+        }
+    };
+
+    private Trace() {
+    }
+
+    static void event(final int id, final long arg0, final long arg1) {
+        final Ring ring = sThreadRing.get();
+        if (ring != null) {
+            ring.add(id, arg0, arg1);
+        }
+    }
+
+    static int getRingCount() {
+        return sRings.size();
+    }
+
+    /**
+     * Writes the events of every thread, oldest first, timed relative to now.
+     */
+    static void dump(final PrintWriter writer) {
+        final long now = System.nanoTime();
+        final List<Entry> entries = new ArrayList<>();
+        for (final Ring ring : sRings) {
+            ring.snapshot(entries);
+        }
+        Collections.sort(entries, (a, b) -> Long.compare(a.mNanos, b.mNanos));
+        writer.println("trace: " + entries.size() + " events from " + sRings.size() + " threads"
+                + ", " + sUntracedThreads.get() + " threads not traced");
+        for (final Entry entry : entries) {
+            writer.println(String.format("%+10.3fms %-20s ", (entry.mNanos - now) / 1e6,
+                    entry.mThreadName) + decode(entry));
+        }
+        writer.flush();
+    }
+
+    /**
+     * Dumps the trace to logcat, for instance when a turn fails.
+     */
+    static void dump(final String tag) {
+        final StringWriter text = new StringWriter();
+        dump(new PrintWriter(text));
+        for (final String line : text.toString().split("\n")) {
+            Log.i(tag, line);
+        }
+    }
+
+    private static String decode(final Entry entry) {
+        if (entry.mId < 0 || entry.mId >= EVENT_FORMATS.length) {
+            return "event " + entry.mId + ": " + entry.mArg0 + ", " + entry.mArg1;
+        }
+        return String.format(EVENT_FORMATS[entry.mId], entry.mArg0, entry.mArg1);
+    }
+
+    /**
+     * Events of one thread. Only the owner thread writes; it publishes each event by
+     * incrementing the volatile count, so readers can detect the slots overwritten meanwhile.
+     * The events of the previous, dead owner stay until its successor overwrites them, older
+     * ones are dropped.
+     */
+    private static final class Ring {
+        private final long[] mEvents = new long[CAPACITY * FIELDS];
+        private volatile long mCount;
+        private volatile WeakReference<Thread> mOwner;
+        private volatile String mThreadName;
+        private volatile String mPreviousThreadName;
+        // Indexes of the first events of the current and previous owners.
+        private volatile long mOwnerStart;
+        private volatile long mPreviousOwnerStart;
+
+        boolean isOwnerAlive() {
+            final Thread owner = mOwner.get();
+            return owner != null && owner.isAlive();
+        }
+
+        // Called by the new owner, once the previous one is dead.
+        void setOwner(final Thread owner) {
+            mPreviousThreadName = mThreadName;
+            mPreviousOwnerStart = mOwnerStart;
+            mOwnerStart = mCount;
+            mThreadName = owner.getName();
+            mOwner = new WeakReference<>(owner);
+        }
+
+        void add(final int id, final long arg0, final long arg1) {
+            final long count = mCount;
+            final int slot = (int) (count & (CAPACITY - 1)) * FIELDS;
+            mEvents[slot] = id;
+            mEvents[slot + 1] = System.nanoTime();
+            mEvents[slot + 2] = arg0;
+            mEvents[slot + 3] = arg1;
+            mCount = count + 1;
+        }
+
+        void snapshot(final List<Entry> out) {
+            final long end = mCount;
+            final long start = Math.max(mPreviousOwnerStart, end - CAPACITY);
+            final int first = out.size();
+            final long ownerStart = mOwnerStart;
+            final String threadName = mThreadName;
+            final String previousThreadName = mPreviousThreadName;
+            for (long i = start; i < end; i++) {
+                final int slot = (int) (i & (CAPACITY - 1)) * FIELDS;
+                out.add(new Entry(i < ownerStart ? previousThreadName : threadName, i,
+                        (int) mEvents[slot], mEvents[slot + 1], mEvents[slot + 2],
+                        mEvents[slot + 3]));
+            }
+            // Drop the slots the writer may have reused while they were copied.
+            final long oldestValid = mCount + 1 - CAPACITY;
+            int valid = first;
+            while (valid < out.size() && out.get(valid).mIndex < oldestValid) {
+                valid++;
+            }
+            out.subList(first, valid).clear();
+        }
+    }
+
+    private static final class Entry {
+        final String mThreadName;
+        final long mIndex;
+        final int mId;
+        final long mNanos;
+        final long mArg0;
+        final long mArg1;
+
+        Entry(final String threadName, final long index, final int id, final long nanos,
+              final long arg0, final long arg1) {
+            mThreadName = threadName;
+            mIndex = index;
+            mId = id;
+            mNanos = nanos;
+            mArg0 = arg0;
+            mArg1 = arg1;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Lifecycle of the push-to-talk turns: {@code IDLE -> RECORDING -> RESPONDING -> IDLE}.
+ *
+ * <p>Every press starts a new turn with a new id, superseding and cancelling the current one
+ * whatever its state. Releases only end a turn that is still recording, so repeated or out of
+ * order button events cannot start the recorder twice or stream into a finished call. Callbacks
+ * of an old call check {@link #isCurrent} and are dropped once their turn was superseded.
+ *
+ * <p>Transitions must all happen on the same thread; {@link #isCurrent} and {@link #getState}
+ * can be called from any thread.
+ */
+final class TurnStateMachine {
+    enum State {
+        IDLE,
+        RECORDING,
+        RESPONDING
+    }
+
+    /**
+     * Side effects of the transitions, run on the transition thread.
+     */
+    interface Actions {
+        /**
+         * Starts capturing and streaming the new turn.
+         */
+        void startTurn(int turnId);
+
+        /**
+         * Stops capturing and closes the request stream, the turn then waits for its response.
+         */
+        void stopRecording(int turnId);
+
+        /**
+         * Cancels the call of a superseded or failed turn and releases what it holds in
+         * {@code state}.
+         */
+        void cancelTurn(int turnId, State state);
+    }
+
+    private final Actions mActions;
+    private volatile int mTurnId;
+    private volatile State mState = State.IDLE;
+
+    TurnStateMachine(final Actions actions) {
+        mActions = actions;
+    }
+
+    void onPress() {
+        if (mState != State.IDLE) {
+            mActions.cancelTurn(mTurnId, mState);
+        }
+        // Publish the id first so the superseded turn is never seen as current again.
+        final int turnId = mTurnId + 1;
+        mTurnId = turnId;
+        mState = State.RECORDING;
+        mActions.startTurn(turnId);
+    }
+
+    void onRelease() {
+        if (mState != State.RECORDING) {
+            return;
+        }
+        mState = State.RESPONDING;
+        mActions.stopRecording(mTurnId);
+    }
+
+    /**
+     * Ends {@code turnId} once its call completed or failed; ignored if it was superseded.
+     */
+    void onTurnFinished(final int turnId) {
+        if (turnId != mTurnId || mState == State.IDLE) {
+            return;
+        }
+        final State state = mState;
+        mState = State.IDLE;
+        if (state == State.RECORDING) {
+            // The call gave up while the button is still held.
+            mActions.cancelTurn(turnId, state);
+        }
+    }
+
+    /**
+     * Ends the current turn whatever its state, e.g. when the service is destroyed.
+     */
+    void cancel() {
+        if (mState != State.IDLE) {
+            final State state = mState;
+            mState = State.IDLE;
+            mActions.cancelTurn(mTurnId, state);
+        }
+    }
+
+    boolean isCurrent(final int turnId) {
+        return turnId == mTurnId && mState != State.IDLE;
+    }
+
+    State getState() {
+        return mState;
+    }
+
+    int getTurnId() {
+        return mTurnId;
+    }
+}
@@ -29,6 +29,7 @@ import com.google.android.things.userdriver.UserDriverManager;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 class VoiceHatDriver implements AutoCloseable {
     private static final String TAG = "VoiceHatDriver";
@@ -36,20 +37,35 @@ class VoiceHatDriver implements AutoCloseable {
     private static final int BUFFER_SIZE = 96000 / 20;
     // buffer of 0.5 sec of sample data at 48khz / 16bit.
     private static final int FLUSH_SIZE = 48000;
-    private I2sDevice mDevice;
+    private final String mI2sBus;
+    // Closed while both directions are in standby.
+    private volatile I2sDevice mDevice;
     private Gpio mTriggerGpio;
     private final AudioFormat mAudioFormat;
+    // Guarded by this.
+    private boolean mInputStandby;
+    private boolean mOutputStandby;
+    // Null unless the format is stereo and the microphone spacing known.
+    private final Beamformer mBeamformer;
     private AudioInputUserDriver mAudioInputDriver;
     private AudioOutputUserDriver mAudioOutputDriver;
 
-    VoiceHatDriver(final String i2sBus, final String triggerGpioPin, final AudioFormat audioFormat)
-            throws IOException {
+    /**
+     * @param micSpacingMm distance between the two microphones, 0 when unknown to capture them
+     *                     without beamforming
+     */
+    VoiceHatDriver(final String i2sBus, final String triggerGpioPin, final AudioFormat audioFormat,
+                   final int micSpacingMm) throws IOException {
         final PeripheralManagerService pioService = new PeripheralManagerService();
+        mI2sBus = i2sBus;
         try {
             mDevice = pioService.openI2sDevice(i2sBus, audioFormat);
             mTriggerGpio = pioService.openGpio(triggerGpioPin);
             mTriggerGpio.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
             mAudioFormat = audioFormat;
+            mBeamformer = audioFormat.getChannelCount() == 2 && micSpacingMm > 0
+                    ? new Beamformer(audioFormat.getSampleRate(), micSpacingMm, BUFFER_SIZE / 4)
+                    : null;
         } catch (final IOException e) {
             try {
                 close();
@@ -109,20 +125,63 @@ class VoiceHatDriver implements AutoCloseable {
         }
     }
 
+    /**
+     * Closes the I2S device once both directions are in standby and reopens it on wake.
+     */
+    private synchronized void setStandby(final boolean input, final boolean inStandby)
+            throws IOException {
+        if (input) {
+            mInputStandby = inStandby;
+        } else {
+            mOutputStandby = inStandby;
+        }
+        if (mInputStandby && mOutputStandby) {
+            if (mDevice != null) {
+                Log.d(TAG, "closing I2S device for standby");
+                mDevice.close();
+                mDevice = null;
+            }
+        } else if (mDevice == null) {
+            final long start = System.nanoTime();
+            mDevice = new PeripheralManagerService().openI2sDevice(mI2sBus, mAudioFormat);
+            Log.d(TAG, "reopened I2S device in "
+                    + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + "us");
+        }
+    }
+
     private class AudioInputUserDriver extends AudioInputDriver {
 
 
         @Override
         public void onStandbyChanged(final boolean b) {
             Log.d(TAG, "audio input driver standby changed:" + b);
+            if (b && mBeamformer != null) {
+                Log.d(TAG, "beamformer: " + mBeamformer.getStats(mAudioFormat.getSampleRate()));
+            }
+            try {
+                setStandby(true, b);
+            } catch (final IOException e) {
+                Log.e(TAG, "error during standby change:", e);
+            }
         }
 
         @Override
         public int read(final ByteBuffer byteBuffer, final int i) {
+            final I2sDevice device = mDevice;
+            if (device == null) {
+                return 0;
+            }
             try {
-                return mDevice.read(byteBuffer, i);
+                final int start = byteBuffer.position();
+                final int result = device.read(byteBuffer, i);
+                Trace.event(Trace.DRIVER_READ, result, i);
+                if (mBeamformer != null && result > 0) {
+                    mBeamformer.process(byteBuffer, start, result);
+                }
+                return result;
             } catch (final IOException e) {
                 Log.e(TAG, "error during read operation:", e);
+                Trace.dump(TAG);
                 return -1;
             }
         }
@@ -135,6 +194,7 @@ class VoiceHatDriver implements AutoCloseable {
             Log.d(TAG, "audio output driver standby changed:" + inStandby);
             try {
                 if (!inStandby) {
+                    setStandby(false, false);
                     Log.d(TAG, "turning voice hat DAC on");
                     final byte[] buf = new byte[FLUSH_SIZE];
                     mDevice.write(buf, 0, buf.length);
@@ -142,6 +202,7 @@ class VoiceHatDriver implements AutoCloseable {
                 } else {
                     Log.d(TAG, "turning voice hat DAC off");
                     mTriggerGpio.setValue(false);
+                    setStandby(false, true);
                 }
             } catch (final IOException e) {
                 Log.e(TAG, "error during standby trigger:", e);
@@ -150,10 +211,17 @@ class VoiceHatDriver implements AutoCloseable {
 
         @Override
         public int write(final ByteBuffer byteBuffer, final int i) {
+            final I2sDevice device = mDevice;
+            if (device == null) {
+                return 0;
+            }
             try {
-                return mDevice.write(byteBuffer, i);
+                final int result = device.write(byteBuffer, i);
+                Trace.event(Trace.DRIVER_WRITE, result, i);
+                return result;
             } catch (final IOException e) {
                 Log.e(TAG, "error during write operation:", e);
+                Trace.dump(TAG);
                 return -1;
             }
         }
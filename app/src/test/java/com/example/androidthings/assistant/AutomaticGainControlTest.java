@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static com.example.androidthings.assistant.AudioProcessorBenchmark.BLOCK_SIZE;
+import static com.example.androidthings.assistant.AudioProcessorBenchmark.SAMPLE_RATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AutomaticGainControlTest {
+    // As the breadboard, Q8 gains.
+    private static final int TARGET_LEVEL = 16000;
+    private static final int MAX_GAIN = 16 << 8;
+    private static final int NOISE_FLOOR = 300;
+    // 1 kHz, a whole number of periods per block.
+    private static final int PERIOD = SAMPLE_RATE / 1000;
+    // The gain rises by an eighth of the way per block, settled within 2 sec.
+    private static final int SETTLED_BLOCKS = 2 * SAMPLE_RATE / BLOCK_SIZE;
+    private static final double MAX_CPU_MS_PER_AUDIO_SECOND = 20;
+
+    @Test
+    public void bringsQuietSpeechUpToTheTarget() {
+        final AutomaticGainControl agc = newAgc();
+        final short[] block = run(agc, 2000, SETTLED_BLOCKS);
+        assertEquals(TARGET_LEVEL, peak(block), TARGET_LEVEL / 10);
+    }
+
+    @Test
+    public void bringsLoudSpeechDownToTheTarget() {
+        final AutomaticGainControl agc = newAgc();
+        final short[] block = run(agc, 30000, SETTLED_BLOCKS);
+        assertEquals(TARGET_LEVEL, peak(block), TARGET_LEVEL / 10);
+    }
+
+    @Test
+    public void limitsTheGain() {
+        final AutomaticGainControl agc = newAgc();
+        final short[] block = run(agc, 500, SETTLED_BLOCKS);
+        assertEquals(500 * MAX_GAIN >> 8, peak(block), 500 * MAX_GAIN >> 11);
+    }
+
+    @Test
+    public void leavesTheGainAloneBelowTheNoiseFloor() {
+        final AutomaticGainControl agc = newAgc();
+        final short[] block = run(agc, NOISE_FLOOR / 2, SETTLED_BLOCKS);
+        assertEquals(NOISE_FLOOR / 2, peak(block), 1);
+    }
+
+    @Test
+    public void doesNotOverflowOnFullScaleInput() {
+        final AutomaticGainControl agc = newAgc();
+        // Quiet speech drives the gain to its maximum, then a full scale square wave hits it.
+        run(agc, 500, SETTLED_BLOCKS);
+        for (int b = 0; b < SETTLED_BLOCKS; b++) {
+            final short[] block = new short[BLOCK_SIZE];
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                block[i] = i % PERIOD < PERIOD / 2 ? Short.MAX_VALUE : Short.MIN_VALUE;
+            }
+            final short[] input = block.clone();
+            agc.process(block, BLOCK_SIZE);
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                assertTrue("block " + b + " sample " + i + ": " + input[i] + " became "
+                        + block[i], input[i] > 0 ? block[i] > 0 : block[i] < 0);
+            }
+        }
+    }
+
+    @Test
+    public void usesAFractionOfTheCpuOfRealTime() {
+        final short[] samples = new short[10 * SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = sample(4000, i);
+        }
+        final double cpuMs = AudioProcessorBenchmark.cpuMsPerAudioSecond(newAgc(), samples);
+        assertTrue(cpuMs + "ms of cpu per second of audio", cpuMs < MAX_CPU_MS_PER_AUDIO_SECOND);
+    }
+
+    private static AutomaticGainControl newAgc() {
+        return new AutomaticGainControl(TARGET_LEVEL, MAX_GAIN, NOISE_FLOOR);
+    }
+
+    // Feeds blocks of a sine of peak {@code amplitude}, returns the last one processed.
+    private static short[] run(final AutomaticGainControl agc, final int amplitude,
+                               final int blocks) {
+        final short[] block = new short[BLOCK_SIZE];
+        for (int b = 0; b < blocks; b++) {
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                block[i] = sample(amplitude, i);
+            }
+            agc.process(block, BLOCK_SIZE);
+        }
+        return block;
+    }
+
+    private static short sample(final int amplitude, final int i) {
+        return (short) Math.round(amplitude * Math.sin(2 * Math.PI * (i % PERIOD) / PERIOD));
+    }
+
+    private static int peak(final short[] samples) {
+        int peak = 0;
+        for (final short sample : samples) {
+            peak = Math.max(peak, Math.abs(sample));
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Feeds the beamformer plane waves, synthesized analytically at each microphone so that their
+ * fractional delays are exact.
+ */
+public class BeamformerTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int MIC_SPACING_MM = 60;
+    private static final float SPEED_OF_SOUND_MM_PER_SEC = 343000f;
+    // As the drivers: frames of 0.05 sec at 48khz, captured in SAMPLE_BLOCK_SIZE blocks.
+    private static final int MAX_FRAMES = 1200;
+    private static final int BLOCK_FRAMES = 256;
+    // 2 sec, the steering delay then settled.
+    private static final int CONVERGENCE_FRAMES = 2 * SAMPLE_RATE;
+    private static final int MEASURED_FRAMES = SAMPLE_RATE / 2;
+    // Below the energy from which the direction is tracked, so measuring leaves it alone.
+    private static final float PROBE_AMPLITUDE = 200;
+    private static final double TARGET_ANGLE = Math.toRadians(60);
+    private static final double MAX_DELAY_ERROR = 0.1;
+    // A quarter of a core, the driver thread also serves the I2S device.
+    private static final double MAX_CPU_MS_PER_AUDIO_SECOND = 250;
+
+    /**
+     * Sum of sines reaching the left microphone half a delay early, the right one half a delay
+     * late; the delay is positive when the source is on the left.
+     */
+    private static final class PlaneWave {
+        private final double[] mFrequencies;
+        private final double[] mPhases;
+        private final float mAmplitude;
+        private final double mDelay;
+
+        PlaneWave(final double angle, final double[] frequencies, final float amplitude,
+                  final long seed) {
+            final Random random = new Random(seed);
+            mFrequencies = frequencies;
+            mPhases = new double[frequencies.length];
+            for (int k = 0; k < mPhases.length; k++) {
+                mPhases[k] = 2 * Math.PI * random.nextDouble();
+            }
+            mAmplitude = amplitude / frequencies.length;
+            mDelay = delay(angle);
+        }
+
+        float at(final double t) {
+            double value = 0;
+            for (int k = 0; k < mFrequencies.length; k++) {
+                value += Math.sin(2 * Math.PI * mFrequencies[k] * t / SAMPLE_RATE + mPhases[k]);
+            }
+            return (float) (mAmplitude * value);
+        }
+
+        // Interleaved stereo frames from frame {@code start}.
+        void fill(final ByteBuffer pcm, final long start, final int frames) {
+            pcm.clear();
+            for (int i = 0; i < frames; i++) {
+                pcm.putShort(clip(at(start + i + mDelay / 2)));
+                pcm.putShort(clip(at(start + i - mDelay / 2)));
+            }
+        }
+    }
+
+    // Speech band content, the correlation peak is then unambiguous within the spacing.
+    private static final double[] SPEECH_BAND =
+            {210, 340, 470, 650, 820, 1030, 1290, 1570, 1880, 2210};
+
+    private static double delay(final double angle) {
+        return MIC_SPACING_MM * Math.sin(angle) * SAMPLE_RATE / SPEED_OF_SOUND_MM_PER_SEC;
+    }
+
+    @Test
+    public void interpolatesIntegerDelaysExactly() {
+        final float[] x = new float[32];
+        final Random random = new Random(1);
+        for (int i = 0; i < x.length; i++) {
+            x[i] = random.nextInt(65536) - 32768;
+        }
+        for (int delay = 0; delay < 8; delay++) {
+            for (int n = 10; n < 28; n++) {
+                assertEquals(x[n - delay], Beamformer.delayed(x, n, delay), 1e-3f);
+            }
+        }
+    }
+
+    @Test
+    public void interpolatesFractionalDelaysOfCubicsExactly() {
+        // Cubic Lagrange interpolation reproduces any polynomial up to degree 3.
+        final float[] x = new float[32];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = cubic(i);
+        }
+        for (final float delay : new float[]{0.25f, 0.5f, 1.3f, 2.75f, 4.9f}) {
+            for (int n = 10; n < 28; n++) {
+                final float expected = cubic(n - delay);
+                assertEquals(delay + " at " + n, expected, Beamformer.delayed(x, n, delay),
+                        1e-4f * Math.abs(expected) + 1e-2f);
+            }
+        }
+    }
+
+    @Test
+    public void interpolatesFractionalDelaysOfSpeech() {
+        final PlaneWave wave = new PlaneWave(0, SPEECH_BAND, 10000, 2);
+        final float[] x = new float[64];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = wave.at(i);
+        }
+        for (final float delay : new float[]{0.25f, 0.5f, 1.3f, 2.75f}) {
+            for (int n = 10; n < 60; n++) {
+                // The error of a cubic grows with the frequency, 1% of the amplitude up to 2khz.
+                assertEquals(delay + " at " + n, wave.at(n - delay),
+                        Beamformer.delayed(x, n, delay), 100);
+            }
+        }
+    }
+
+    @Test
+    public void steersToThePlaneWave() {
+        for (final double degrees : new double[]{-60, -20, 0, 30, 75}) {
+            final Beamformer beamformer = converged(Math.toRadians(degrees));
+            assertEquals(degrees + " degrees", delay(Math.toRadians(degrees)),
+                    beamformer.getDelay(), MAX_DELAY_ERROR);
+        }
+    }
+
+    @Test
+    public void passesTheSteeredDirectionAndAttenuatesTheOpposite() {
+        final double targetDelay = delay(TARGET_ANGLE);
+        // The two microphones sum in antiphase at this frequency from the mirrored angle.
+        final double nullFrequency = SAMPLE_RATE / (4 * targetDelay);
+        final double[] tone = {nullFrequency};
+
+        Beamformer beamformer = converged(TARGET_ANGLE);
+        final double onAxisDb =
+                gainDb(beamformer, new PlaneWave(TARGET_ANGLE, tone, PROBE_AMPLITUDE, 3));
+        beamformer = converged(TARGET_ANGLE);
+        final double offAxisDb =
+                gainDb(beamformer, new PlaneWave(-TARGET_ANGLE, tone, PROBE_AMPLITUDE, 3));
+        assertTrue("on axis " + onAxisDb + "dB", onAxisDb > -1);
+        assertTrue("off axis " + offAxisDb + "dB", offAxisDb < -15);
+    }
+
+    @Test
+    public void usesAFractionOfTheCpuOfRealTime() {
+        final PlaneWave wave = new PlaneWave(TARGET_ANGLE, SPEECH_BAND, 8000, 4);
+        final int frames = 10 * SAMPLE_RATE;
+        final ByteBuffer[] blocks = new ByteBuffer[frames / BLOCK_FRAMES];
+        for (int b = 0; b < blocks.length; b++) {
+            blocks[b] = ByteBuffer.allocate(4 * BLOCK_FRAMES).order(ByteOrder.LITTLE_ENDIAN);
+            wave.fill(blocks[b], (long) b * BLOCK_FRAMES, BLOCK_FRAMES);
+        }
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        // Warms up the JIT, then measures.
+        process(new Beamformer(SAMPLE_RATE, MIC_SPACING_MM, MAX_FRAMES), blocks);
+        final int rounds = 5;
+        final long startNs = threads.isCurrentThreadCpuTimeSupported()
+                ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            process(new Beamformer(SAMPLE_RATE, MIC_SPACING_MM, MAX_FRAMES), blocks);
+        }
+        final long cpuNs = (threads.isCurrentThreadCpuTimeSupported()
+                ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - startNs;
+        final double audioSeconds = (double) rounds * blocks.length * BLOCK_FRAMES / SAMPLE_RATE;
+        final double cpuMsPerAudioSecond = cpuNs / 1e6 / audioSeconds;
+        assertTrue(cpuMsPerAudioSecond + "ms of cpu per second of audio",
+                cpuMsPerAudioSecond < MAX_CPU_MS_PER_AUDIO_SECOND);
+    }
+
+    // The processed blocks are left beamformed, the measurement only needs the same input.
+    private static void process(final Beamformer beamformer, final ByteBuffer[] blocks) {
+        final ByteBuffer pcm = ByteBuffer.allocate(4 * BLOCK_FRAMES).order(ByteOrder.LITTLE_ENDIAN);
+        for (final ByteBuffer block : blocks) {
+            pcm.clear();
+            pcm.put(block.array());
+            beamformer.process(pcm, 0, pcm.capacity());
+        }
+    }
+
+    private Beamformer converged(final double angle) {
+        final Beamformer beamformer = new Beamformer(SAMPLE_RATE, MIC_SPACING_MM, MAX_FRAMES);
+        final PlaneWave wave = new PlaneWave(angle, SPEECH_BAND, 8000, 5);
+        final ByteBuffer pcm =
+                ByteBuffer.allocate(4 * BLOCK_FRAMES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int start = 0; start < CONVERGENCE_FRAMES; start += BLOCK_FRAMES) {
+            wave.fill(pcm, start, BLOCK_FRAMES);
+            beamformer.process(pcm, 0, pcm.capacity());
+        }
+        return beamformer;
+    }
+
+    // Output over input power of the left microphone, once the filter history is flushed.
+    private static double gainDb(final Beamformer beamformer, final PlaneWave wave) {
+        final ByteBuffer pcm =
+                ByteBuffer.allocate(4 * BLOCK_FRAMES).order(ByteOrder.LITTLE_ENDIAN);
+        double inputEnergy = 0;
+        double outputEnergy = 0;
+        for (int start = 0; start < 2 * BLOCK_FRAMES + MEASURED_FRAMES; start += BLOCK_FRAMES) {
+            wave.fill(pcm, start, BLOCK_FRAMES);
+            final boolean measured = start >= 2 * BLOCK_FRAMES;
+            if (measured) {
+                for (int i = 0; i < BLOCK_FRAMES; i++) {
+                    inputEnergy += Math.pow(pcm.getShort(4 * i), 2);
+                }
+            }
+            beamformer.process(pcm, 0, pcm.capacity());
+            if (measured) {
+                for (int i = 0; i < BLOCK_FRAMES; i++) {
+                    outputEnergy += Math.pow(pcm.getShort(4 * i), 2);
+                }
+            }
+        }
+        return 10 * Math.log10(outputEnergy / inputEnergy);
+    }
+
+    private static float cubic(final float t) {
+        return 3 + 2 * t - 0.5f * t * t + 0.03f * t * t * t;
+    }
+
+    private static short clip(final float value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+    }
+}
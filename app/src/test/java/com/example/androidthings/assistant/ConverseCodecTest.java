@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.assistant.embedded.v1alpha1.AudioOut;
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.ConverseResult;
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+
+public class ConverseCodecTest {
+    // Crosses every varint length boundary of the audio_in size up to 3 bytes.
+    private static final int[] AUDIO_SIZES = {1, 127, 128, 1024, 16383, 16384, 100000};
+
+    @Test
+    public void audioInRequestMatchesGeneratedEncoding() throws IOException {
+        for (final int size : AUDIO_SIZES) {
+            final ByteBuffer audio = ByteBuffer.wrap(randomBytes(size, size));
+            final ConverseRequest generated = ConverseRequests.audioIn(audio.duplicate());
+            final ConverseCodec.Request request = ConverseCodec.Request.audioIn(audio);
+            assertEquals(size, request.getAudioInSize());
+            final byte[] drained = drain(ConverseCodec.METHOD_CONVERSE.streamRequest(request));
+            assertArrayEquals("size " + size, generated.toByteArray(), drained);
+            assertArrayEquals("size " + size, drained,
+                    read(ConverseCodec.METHOD_CONVERSE.streamRequest(request), 7));
+            assertEquals(generated, ConverseRequest.parseFrom(drained));
+        }
+    }
+
+    @Test
+    public void audioInRequestCopiesOnlyTheRemainingBytes() throws IOException {
+        final byte[] block = randomBytes(1024, 1);
+        final ByteBuffer audio = ByteBuffer.wrap(block, 100, 500);
+        final byte[] encoded = drain(ConverseCodec.METHOD_CONVERSE.streamRequest(
+                ConverseCodec.Request.audioIn(audio)));
+        // The caller may reuse its buffer once the request was built.
+        block[200] ^= 0xff;
+        assertEquals(100, audio.position());
+        final ByteString audioIn = ConverseRequest.parseFrom(encoded).getAudioIn();
+        assertEquals(500, audioIn.size());
+        assertEquals((byte) (block[200] ^ 0xff), audioIn.byteAt(100));
+    }
+
+    @Test
+    public void emptyAudioInRequestParsesAsGenerated() throws IOException {
+        final byte[] encoded = drain(ConverseCodec.METHOD_CONVERSE.streamRequest(
+                ConverseCodec.Request.audioIn(ByteBuffer.allocate(0))));
+        assertEquals(ConverseRequests.audioIn(ByteBuffer.allocate(0)),
+                ConverseRequest.parseFrom(encoded));
+    }
+
+    @Test
+    public void configRequestRoundTrips() throws IOException {
+        final ConverseRequest config = ConverseRequests.config(16000);
+        final byte[] encoded = drain(ConverseCodec.METHOD_CONVERSE.streamRequest(
+                ConverseCodec.Request.of(config)));
+        assertArrayEquals(config.toByteArray(), encoded);
+    }
+
+    @Test
+    public void audioInStreamEndsWithMinusOneForEmptyReads() throws IOException {
+        final InputStream stream = ConverseCodec.METHOD_CONVERSE.streamRequest(
+                ConverseCodec.Request.audioIn(ByteBuffer.wrap(randomBytes(10, 2))));
+        final byte[] buffer = new byte[stream.available()];
+        assertEquals(buffer.length, stream.read(buffer, 0, buffer.length));
+        assertEquals(-1, stream.read(buffer, buffer.length, 0));
+        assertEquals(-1, stream.read());
+    }
+
+    @Test
+    public void audioOutOnlyResponseIsNotParsed() {
+        for (final int size : AUDIO_SIZES) {
+            final byte[] audio = randomBytes(size, size);
+            final ConverseResponse generated = audioOut(audio);
+            final ConverseCodec.Response response = parse(generated.toByteArray(), true);
+            assertEquals(ConverseResponse.ConverseResponseCase.AUDIO_OUT,
+                    response.getConverseResponseCase());
+            assertNull(response.getMessage());
+            assertArrayEquals("size " + size, audio, bytes(response.getAudioData()));
+            // Also when gRPC hands over a stream of unknown length.
+            assertArrayEquals("size " + size, audio,
+                    bytes(parse(generated.toByteArray(), false).getAudioData()));
+        }
+    }
+
+    @Test
+    public void emptyAudioOutResponseMatchesGenerated() {
+        final ConverseResponse generated = audioOut(new byte[0]);
+        final ConverseCodec.Response response = parse(generated.toByteArray(), true);
+        assertEquals(ConverseResponse.ConverseResponseCase.AUDIO_OUT,
+                response.getConverseResponseCase());
+        assertEquals(0, response.getAudioData().remaining());
+    }
+
+    @Test
+    public void otherResponsesGoThroughGeneratedCode() {
+        final ConverseResponse[] responses = {
+                ConverseResponse.newBuilder()
+                        .setEventType(ConverseResponse.EventType.END_OF_UTTERANCE)
+                        .build(),
+                ConverseResponse.newBuilder()
+                        .setResult(ConverseResult.newBuilder()
+                                .setSpokenRequestText("what time is it")
+                                .setConversationState(ByteString.copyFrom(randomBytes(64, 3))))
+                        .build(),
+        };
+        for (final ConverseResponse generated : responses) {
+            final ConverseCodec.Response response = parse(generated.toByteArray(), true);
+            assertEquals(generated, response.getMessage());
+            assertEquals(generated.getConverseResponseCase(), response.getConverseResponseCase());
+        }
+    }
+
+    @Test
+    public void mixedResponsesMatchGeneratedParsing() throws IOException {
+        final byte[] audio = randomBytes(1600, 4);
+        final byte[] endOfUtterance = ConverseResponse.newBuilder()
+                .setEventType(ConverseResponse.EventType.END_OF_UTTERANCE)
+                .build()
+                .toByteArray();
+        final byte[] result = ConverseResponse.newBuilder()
+                .setResult(ConverseResult.newBuilder().setSpokenRequestText("hi"))
+                .build()
+                .toByteArray();
+        // Concatenated messages merge, the last field of the oneof wins.
+        final byte[][] mixed = {
+                concat(endOfUtterance, audioOut(audio).toByteArray()),
+                concat(audioOut(audio).toByteArray(), result),
+                concat(audioOut(audio).toByteArray(), audioOut(audio).toByteArray()),
+        };
+        for (final byte[] message : mixed) {
+            final ConverseResponse generated = ConverseResponse.parseFrom(message);
+            final ConverseCodec.Response response = parse(message, true);
+            assertNotNull(response.getMessage());
+            assertEquals(generated, response.getMessage());
+            if (generated.getConverseResponseCase()
+                    == ConverseResponse.ConverseResponseCase.AUDIO_OUT) {
+                assertArrayEquals(generated.getAudioOut().getAudioData().toByteArray(),
+                        bytes(response.getAudioData()));
+            }
+        }
+    }
+
+    @Test
+    public void responsesRoundTripThroughTheCodec() throws IOException {
+        final byte[] audio = randomBytes(1600, 5);
+        final ConverseResponse generated = audioOut(audio);
+        final ConverseCodec.Response response = parse(generated.toByteArray(), true);
+        final byte[] encoded = read(ConverseCodec.METHOD_CONVERSE.streamResponse(response), 4096);
+        assertEquals(generated, ConverseResponse.parseFrom(encoded));
+    }
+
+    private static ConverseResponse audioOut(final byte[] audio) {
+        return ConverseResponse.newBuilder()
+                .setAudioOut(AudioOut.newBuilder().setAudioData(ByteString.copyFrom(audio)))
+                .build();
+    }
+
+    private static ConverseCodec.Response parse(final byte[] message, final boolean knownLength) {
+        return ConverseCodec.METHOD_CONVERSE.parseResponse(knownLength
+                ? new KnownLengthInputStream(message) : new ByteArrayInputStream(message));
+    }
+
+    private static byte[] drain(final InputStream stream) throws IOException {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        assertEquals(stream.available(), ((Drainable) stream).drainTo(sink));
+        return sink.toByteArray();
+    }
+
+    private static byte[] read(final InputStream stream, final int chunkSize) throws IOException {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[chunkSize];
+        int count;
+        while ((count = stream.read(chunk)) >= 0) {
+            sink.write(chunk, 0, count);
+        }
+        return sink.toByteArray();
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        final byte[] data = new byte[first.length + second.length];
+        System.arraycopy(first, 0, data, 0, first.length);
+        System.arraycopy(second, 0, data, first.length, second.length);
+        return data;
+    }
+
+    private static byte[] randomBytes(final int size, final long seed) {
+        final byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static class KnownLengthInputStream extends ByteArrayInputStream
+            implements KnownLength {
+        KnownLengthInputStream(final byte[] buf) {
+            super(buf);
+        }
+    }
+}
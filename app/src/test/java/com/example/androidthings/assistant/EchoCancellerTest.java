@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+public class EchoCancellerTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BLOCK_SIZE = 256;
+    private static final int MAX_DELAY = SAMPLE_RATE / 2;
+    // One SAMPLE_BLOCK_SIZE capture block of the service.
+    private static final int CAPTURE_BLOCK = 512;
+    // 100ms of playback to capture delay.
+    private static final int ECHO_DELAY = 1600;
+    // Room response following the bulk delay, well within the filter span.
+    private static final float[] ECHO_PATH = {0.6f, 0f, -0.3f, 0.2f, 0f, 0f, 0.1f, -0.05f};
+    private static final int DURATION_BLOCKS = 10 * SAMPLE_RATE / CAPTURE_BLOCK;
+    // Measured over the last 2 sec, after convergence.
+    private static final int MEASURED_BLOCKS = 2 * SAMPLE_RATE / CAPTURE_BLOCK;
+    private static final double MIN_ERLE_DB = 15;
+    // 0.1 sec.
+    private static final int SYLLABLE_LENGTH = SAMPLE_RATE / 10;
+    // A quarter of a core, the capture thread also runs the rest of the front end.
+    private static final double MAX_CPU_MS_PER_AUDIO_SECOND = 250;
+
+    private int mBlock;
+
+    @Test
+    public void estimatesTheDelayAndCancelsTheEcho() {
+        final short[] reference = speechLikeNoise(DURATION_BLOCKS * CAPTURE_BLOCK, 4000, 1);
+        final short[] capture = echo(reference);
+        addNoise(capture, 30, 2);
+        final EchoCanceller canceller = new EchoCanceller(BLOCK_SIZE, MAX_DELAY);
+        final double erleDb = run(canceller, reference, capture, DURATION_BLOCKS);
+        assertTrue("delay " + canceller.getDelay(), canceller.getDelay() <= ECHO_DELAY
+                && canceller.getDelay() >= ECHO_DELAY - BLOCK_SIZE / 2);
+        assertTrue("ERLE " + erleDb + "dB", erleDb > MIN_ERLE_DB);
+        // Also counts the convergence.
+        assertTrue("reported ERLE " + canceller.getErleDb() + "dB", canceller.getErleDb() > 6);
+    }
+
+    @Test
+    public void keepsTheDelayEstimateDuringDoubleTalk() {
+        final short[] reference = speechLikeNoise(DURATION_BLOCKS * CAPTURE_BLOCK, 4000, 3);
+        final short[] capture = echo(reference);
+        // Near end speech over the last 2 sec, as when barging in on a response.
+        final short[] nearEnd = speechLikeNoise(capture.length, 8000, 4);
+        final int nearEndStart = capture.length - MEASURED_BLOCKS * CAPTURE_BLOCK;
+        for (int i = nearEndStart; i < capture.length; i++) {
+            capture[i] = clip(capture[i] + nearEnd[i]);
+        }
+        final EchoCanceller canceller = new EchoCanceller(BLOCK_SIZE, MAX_DELAY);
+        run(canceller, reference, capture, DURATION_BLOCKS - MEASURED_BLOCKS);
+        final int delay = canceller.getDelay();
+        assertTrue("delay " + delay, delay <= ECHO_DELAY && delay >= ECHO_DELAY - BLOCK_SIZE / 2);
+        run(canceller, reference, capture, DURATION_BLOCKS);
+        assertEquals(delay, canceller.getDelay());
+    }
+
+    @Test
+    public void passesCaptureThroughWithoutReference() {
+        final short[] capture = speechLikeNoise(CAPTURE_BLOCK * 20, 4000, 5);
+        final short[] output = capture.clone();
+        final EchoCanceller canceller = new EchoCanceller(BLOCK_SIZE, MAX_DELAY);
+        for (int offset = 0; offset < output.length; offset += CAPTURE_BLOCK) {
+            final short[] block = new short[CAPTURE_BLOCK];
+            System.arraycopy(output, offset, block, 0, CAPTURE_BLOCK);
+            canceller.process(block, CAPTURE_BLOCK);
+            System.arraycopy(block, 0, output, offset, CAPTURE_BLOCK);
+        }
+        for (int i = 0; i < capture.length; i++) {
+            assertEquals(capture[i], output[i]);
+        }
+    }
+
+    @Test
+    public void usesAFractionOfTheCpuOfRealTime() {
+        final short[] reference = speechLikeNoise(DURATION_BLOCKS * CAPTURE_BLOCK, 4000, 6);
+        final short[] capture = echo(reference);
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        // Warms up the JIT, then measures.
+        run(new EchoCanceller(BLOCK_SIZE, MAX_DELAY), reference, capture, DURATION_BLOCKS);
+        final int rounds = 5;
+        final long startNs = threads.isCurrentThreadCpuTimeSupported()
+                ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            mBlock = 0;
+            run(new EchoCanceller(BLOCK_SIZE, MAX_DELAY), reference, capture, DURATION_BLOCKS);
+        }
+        final long cpuNs = (threads.isCurrentThreadCpuTimeSupported()
+                ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - startNs;
+        final double audioSeconds = (double) rounds * reference.length / SAMPLE_RATE;
+        final double cpuMsPerAudioSecond = cpuNs / 1e6 / audioSeconds;
+        assertTrue(cpuMsPerAudioSecond + "ms of cpu per second of audio",
+                cpuMsPerAudioSecond < MAX_CPU_MS_PER_AUDIO_SECOND);
+    }
+
+    /**
+     * Feeds the reference along with the capture up to {@code endBlock}, continuing from the
+     * block reached by the previous run, and returns the ERLE over the last MEASURED_BLOCKS.
+     */
+    private double run(final EchoCanceller canceller, final short[] reference,
+                       final short[] capture, final int endBlock) {
+        final ByteBuffer pcm =
+                ByteBuffer.allocate(2 * CAPTURE_BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+        final short[] block = new short[CAPTURE_BLOCK];
+        double echoEnergy = 0;
+        double residualEnergy = 0;
+        for (int b = mBlock; b < endBlock; b++) {
+            final int offset = b * CAPTURE_BLOCK;
+            pcm.clear();
+            pcm.asShortBuffer().put(reference, offset, CAPTURE_BLOCK);
+            canceller.addReference(pcm);
+            System.arraycopy(capture, offset, block, 0, CAPTURE_BLOCK);
+            canceller.process(block, CAPTURE_BLOCK);
+            if (b >= endBlock - MEASURED_BLOCKS) {
+                for (int i = 0; i < CAPTURE_BLOCK; i++) {
+                    echoEnergy += (double) capture[offset + i] * capture[offset + i];
+                    residualEnergy += (double) block[i] * block[i];
+                }
+            }
+        }
+        mBlock = endBlock;
+        return 10 * Math.log10(echoEnergy / residualEnergy);
+    }
+
+    private static short[] echo(final short[] reference) {
+        final short[] capture = new short[reference.length];
+        for (int i = 0; i < capture.length; i++) {
+            float value = 0;
+            for (int k = 0; k < ECHO_PATH.length; k++) {
+                final int index = i - ECHO_DELAY - k;
+                if (index >= 0) {
+                    value += ECHO_PATH[k] * reference[index];
+                }
+            }
+            capture[i] = clip(value);
+        }
+        return capture;
+    }
+
+    // Low-pass filtered noise with a random envelope changing at syllable rate.
+    private static short[] speechLikeNoise(final int length, final int amplitude, final long seed) {
+        final Random random = new Random(seed);
+        final short[] samples = new short[length];
+        float lowPass = 0;
+        float envelope = 0;
+        float target = 0;
+        for (int i = 0; i < length; i++) {
+            if (i % SYLLABLE_LENGTH == 0) {
+                target = 0.1f + 0.9f * random.nextFloat();
+            }
+            envelope += 0.005f * (target - envelope);
+            lowPass = 0.7f * lowPass + 0.3f * (float) random.nextGaussian();
+            samples[i] = clip(amplitude * envelope * lowPass);
+        }
+        return samples;
+    }
+
+    private static void addNoise(final short[] samples, final int amplitude, final long seed) {
+        final Random random = new Random(seed);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = clip(samples[i] + (float) (amplitude * random.nextGaussian()));
+        }
+    }
+
+    private static short clip(final float value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+}
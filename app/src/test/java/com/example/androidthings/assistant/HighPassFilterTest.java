@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static com.example.androidthings.assistant.AudioProcessorBenchmark.BLOCK_SIZE;
+import static com.example.androidthings.assistant.AudioProcessorBenchmark.SAMPLE_RATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HighPassFilterTest {
+    // As the Voice HAT.
+    private static final int CUTOFF_HZ = 100;
+    private static final int AMPLITUDE = 10000;
+    // Cheap enough to run on every captured block next to the other stages.
+    private static final double MAX_CPU_MS_PER_AUDIO_SECOND = 20;
+
+    @Test
+    public void rejectsTheDcOffset() {
+        final short[] samples = new short[SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (AMPLITUDE + (i % 2 == 0 ? 100 : -100));
+        }
+        process(new HighPassFilter(CUTOFF_HZ, SAMPLE_RATE), samples);
+        // Settled after a few time constants of 1.6ms.
+        double mean = 0;
+        for (int i = samples.length / 2; i < samples.length; i++) {
+            mean += samples[i];
+        }
+        mean /= samples.length / 2;
+        assertEquals("DC left " + mean, 0, mean, 2);
+    }
+
+    @Test
+    public void passesSpeechAndAttenuatesRumble() {
+        final double speechDb = gainDb(1000);
+        final double rumbleDb = gainDb(20);
+        assertEquals("1khz " + speechDb + "dB", 0, speechDb, 0.5);
+        // A first order filter, -14dB two octaves under the cutoff.
+        assertTrue("20hz " + rumbleDb + "dB", rumbleDb < -10);
+    }
+
+    @Test
+    public void keepsItsStateAcrossBlocks() {
+        final short[] whole = sine(300, SAMPLE_RATE / 2);
+        final short[] blocks = whole.clone();
+        process(new HighPassFilter(CUTOFF_HZ, SAMPLE_RATE), blocks);
+        final HighPassFilter filter = new HighPassFilter(CUTOFF_HZ, SAMPLE_RATE);
+        filter.process(whole, whole.length);
+        for (int i = 0; i < whole.length; i++) {
+            assertEquals(whole[i], blocks[i]);
+        }
+    }
+
+    @Test
+    public void usesAFractionOfTheCpuOfRealTime() {
+        final double cpuMs = AudioProcessorBenchmark.cpuMsPerAudioSecond(
+                new HighPassFilter(CUTOFF_HZ, SAMPLE_RATE), sine(1000, 10 * SAMPLE_RATE));
+        assertTrue(cpuMs + "ms of cpu per second of audio", cpuMs < MAX_CPU_MS_PER_AUDIO_SECOND);
+    }
+
+    private static double gainDb(final double frequency) {
+        final short[] input = sine(frequency, SAMPLE_RATE);
+        final short[] output = input.clone();
+        process(new HighPassFilter(CUTOFF_HZ, SAMPLE_RATE), output);
+        double inputEnergy = 0;
+        double outputEnergy = 0;
+        // Skips the transient of the first half.
+        for (int i = input.length / 2; i < input.length; i++) {
+            inputEnergy += (double) input[i] * input[i];
+            outputEnergy += (double) output[i] * output[i];
+        }
+        return 10 * Math.log10(outputEnergy / inputEnergy);
+    }
+
+    private static void process(final HighPassFilter filter, final short[] samples) {
+        final short[] block = new short[BLOCK_SIZE];
+        for (int offset = 0; offset < samples.length; offset += BLOCK_SIZE) {
+            final int count = Math.min(BLOCK_SIZE, samples.length - offset);
+            System.arraycopy(samples, offset, block, 0, count);
+            filter.process(block, count);
+            System.arraycopy(block, 0, samples, offset, count);
+        }
+    }
+
+    private static short[] sine(final double frequency, final int length) {
+        final short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * i
+                    / SAMPLE_RATE));
+        }
+        return samples;
+    }
+}
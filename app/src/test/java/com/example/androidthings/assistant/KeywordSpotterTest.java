@@ -0,0 +1,290 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs the spotter on the clips of {@code resources/keyword}: 16khz 16 bit little endian
+ * recordings of the keyword "aiu" and of other utterances. They are formant synthesized vowel
+ * glides with varied pitch, pace and vocal tract length, as recordings of people cannot ship with
+ * the sample. {@code keyword_templates.bin} holds the templates of keyword_1 to keyword_3.
+ */
+public class KeywordSpotterTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final String KEYWORD = "aiu";
+    private static final int TEMPLATE_CLIPS = 3;
+    private static final int KEYWORD_CLIPS = 8;
+    private static final int OTHER_CLIPS = 8;
+    // Background between clips, longer than the refractory period.
+    private static final int GAP_SAMPLES = 3 * SAMPLE_RATE / 2;
+    private static final int NOISE_LEVEL = 100;
+    // A capture block of the service.
+    private static final int BLOCK_SIZE = 512;
+    // Detections may lag the end of a clip by the template compression.
+    private static final int DETECTION_LAG = SAMPLE_RATE / 2;
+
+    @Test
+    public void detectsTheKeywordAndRejectsOtherUtterances() throws IOException {
+        final List<short[]> clips = new ArrayList<>();
+        final List<Boolean> keywords = new ArrayList<>();
+        for (int i = 1; i <= Math.max(KEYWORD_CLIPS, OTHER_CLIPS); i++) {
+            if (i > TEMPLATE_CLIPS && i <= KEYWORD_CLIPS) {
+                clips.add(clip("keyword_" + i));
+                keywords.add(true);
+            }
+            if (i <= OTHER_CLIPS) {
+                clips.add(clip("other_" + i));
+                keywords.add(false);
+            }
+        }
+        final KeywordSpotter spotter = bundledSpotter();
+        final Random random = new Random(1);
+        int hits = 0;
+        int falseAccepts = 0;
+        for (int c = 0; c < clips.size(); c++) {
+            // Background, the clip, and background it may be detected in.
+            assertEquals("detection in background before clip " + c, 0,
+                    detections(spotter, noise(GAP_SAMPLES - DETECTION_LAG, random)));
+            final short[] clip = clips.get(c);
+            final short[] window = noise(clip.length + DETECTION_LAG, random);
+            for (int i = 0; i < clip.length; i++) {
+                window[i] = (short) Math.max(Short.MIN_VALUE,
+                        Math.min(Short.MAX_VALUE, window[i] + clip[i]));
+            }
+            final int detections = detections(spotter, window);
+            if (keywords.get(c)) {
+                hits += detections;
+            } else {
+                falseAccepts += detections;
+            }
+        }
+        final int keywordClips = KEYWORD_CLIPS - TEMPLATE_CLIPS;
+        final String result = hits + "/" + keywordClips + " hits, " + falseAccepts + "/"
+                + OTHER_CLIPS + " false accepts";
+        assertEquals(result, keywordClips, hits);
+        assertEquals(result, 0, falseAccepts);
+    }
+
+    @Test
+    public void runsFasterThanRealTime() throws IOException {
+        final KeywordSpotter spotter = bundledSpotter();
+        final short[] block = new short[BLOCK_SIZE];
+        final short[] stream = noise(10 * SAMPLE_RATE, new Random(2));
+        final short[] keyword = clip("keyword_4");
+        System.arraycopy(keyword, 0, stream, SAMPLE_RATE, keyword.length);
+        // Warms up the JIT, then measures.
+        run(spotter, stream, block);
+        final int rounds = 5;
+        final long startNs = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            run(spotter, stream, block);
+        }
+        final double seconds = (System.nanoTime() - startNs) / 1e9;
+        // 100 frames per second of audio.
+        final double framesPerSec = rounds * stream.length / (SAMPLE_RATE / 100) / seconds;
+        assertTrue((int) framesPerSec + " frames/s, " + (int) (framesPerSec / 100)
+                + "x real time", framesPerSec > 100);
+    }
+
+    @Test
+    public void bundledTemplatesAreBuiltFromTheClips() throws IOException {
+        final List<short[]> recordings = new ArrayList<>();
+        for (int i = 1; i <= TEMPLATE_CLIPS; i++) {
+            recordings.add(clip("keyword_" + i));
+        }
+        final List<KeywordSpotter.Template> built = KeywordTemplates.build(KEYWORD, recordings,
+                SAMPLE_RATE, KeywordTemplates.DEFAULT_MARGIN, 0);
+        final List<KeywordSpotter.Template> bundled = bundledTemplates();
+        assertEquals(built.size(), bundled.size());
+        for (int t = 0; t < built.size(); t++) {
+            assertEquals(built.get(t).mKeyword, bundled.get(t).mKeyword);
+            assertEquals(built.get(t).mThreshold, bundled.get(t).mThreshold, 1e-3f);
+            assertEquals(built.get(t).mFrames.length, bundled.get(t).mFrames.length);
+            for (int f = 0; f < built.get(t).mFrames.length; f++) {
+                assertArrayEquals(built.get(t).mFrames[f], bundled.get(t).mFrames[f], 1e-3f);
+            }
+        }
+    }
+
+    @Test
+    public void templatesRoundTrip() throws IOException {
+        final List<KeywordSpotter.Template> templates = bundledTemplates();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KeywordTemplates.write(out, templates);
+        final List<KeywordSpotter.Template> read =
+                KeywordTemplates.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(templates.size(), read.size());
+        for (int t = 0; t < templates.size(); t++) {
+            assertEquals(templates.get(t).mThreshold, read.get(t).mThreshold, 0);
+            assertArrayEquals(templates.get(t).mFrames, read.get(t).mFrames);
+        }
+    }
+
+    @Test
+    public void thresholdsDetectEveryOtherRecording() throws IOException {
+        final List<short[]> recordings = new ArrayList<>();
+        for (int i = 1; i <= KEYWORD_CLIPS; i++) {
+            recordings.add(clip("keyword_" + i));
+        }
+        final List<KeywordSpotter.Template> templates = KeywordTemplates.build(KEYWORD,
+                recordings, SAMPLE_RATE, KeywordTemplates.DEFAULT_MARGIN, 0);
+        for (int t = 0; t < templates.size(); t++) {
+            for (int r = 0; r < recordings.size(); r++) {
+                final float score = templates.get(t).score(KeywordSpotter.features(SAMPLE_RATE,
+                        KeywordTemplates.NUM_COEFFICIENTS, recordings.get(r)));
+                assertTrue(t + " on " + r + ": " + score,
+                        score < templates.get(t).mThreshold);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void leaveOneOutThresholdNeedsTwoRecordings() throws IOException {
+        final List<short[]> recordings = new ArrayList<>();
+        recordings.add(clip("keyword_1"));
+        KeywordTemplates.build(KEYWORD, recordings, SAMPLE_RATE,
+                KeywordTemplates.DEFAULT_MARGIN, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedTemplatesFailToRead() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KeywordTemplates.write(out, bundledTemplates());
+        final byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() / 2);
+        KeywordTemplates.read(new ByteArrayInputStream(truncated));
+    }
+
+    @Test(expected = IOException.class)
+    public void templatesOfAnotherVersionFailToRead() throws IOException {
+        KeywordTemplates.read(header(2, KeywordTemplates.NUM_COEFFICIENTS, 1, 10));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptCoefficientCountFailsToRead() throws IOException {
+        KeywordTemplates.read(header(1, Integer.MAX_VALUE, 1, 10));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptTemplateCountFailsToRead() throws IOException {
+        KeywordTemplates.read(header(1, KeywordTemplates.NUM_COEFFICIENTS, -1, 10));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptFrameCountFailsToRead() throws IOException {
+        // Would allocate gigabytes if it were trusted.
+        KeywordTemplates.read(header(1, KeywordTemplates.NUM_COEFFICIENTS, 1, 1 << 28));
+    }
+
+    // An asset up to the frames of its first template.
+    private static InputStream header(final int version, final int numCoefficients,
+                                      final int count, final int frames) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(version);
+        out.writeInt(numCoefficients);
+        out.writeInt(count);
+        out.writeUTF(KEYWORD);
+        out.writeFloat(1);
+        out.writeInt(frames);
+        out.flush();
+        return new ByteArrayInputStream(bytes.toByteArray());
+    }
+
+    private static int detections(final KeywordSpotter spotter, final short[] samples) {
+        int detections = 0;
+        final short[] block = new short[BLOCK_SIZE];
+        for (int offset = 0; offset < samples.length; offset += BLOCK_SIZE) {
+            final int count = Math.min(BLOCK_SIZE, samples.length - offset);
+            System.arraycopy(samples, offset, block, 0, count);
+            spotter.process(block, count);
+            final String keyword = spotter.pollDetection();
+            if (keyword != null) {
+                assertEquals(KEYWORD, keyword);
+                detections++;
+            }
+        }
+        return detections;
+    }
+
+    private static void run(final KeywordSpotter spotter, final short[] samples,
+                            final short[] block) {
+        for (int offset = 0; offset + block.length <= samples.length; offset += block.length) {
+            System.arraycopy(samples, offset, block, 0, block.length);
+            spotter.process(block, block.length);
+            spotter.pollDetection();
+        }
+    }
+
+    private static short[] noise(final int length, final Random random) {
+        final short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short) (random.nextGaussian() * NOISE_LEVEL);
+        }
+        return samples;
+    }
+
+    private static KeywordSpotter bundledSpotter() throws IOException {
+        return new KeywordSpotter(SAMPLE_RATE, KeywordTemplates.NUM_COEFFICIENTS,
+                bundledTemplates());
+    }
+
+    private static List<KeywordSpotter.Template> bundledTemplates() throws IOException {
+        try (InputStream in = resource("keyword_templates.bin")) {
+            return KeywordTemplates.read(in);
+        }
+    }
+
+    private static short[] clip(final String name) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = resource(name + ".raw")) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        final short[] samples = new short[bytes.size() / 2];
+        ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+                .get(samples);
+        return samples;
+    }
+
+    private static InputStream resource(final String name) throws IOException {
+        final InputStream in = KeywordSpotterTest.class.getResourceAsStream("/keyword/" + name);
+        if (in == null) {
+            throw new IOException("missing test resource keyword/" + name);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+
+public class LocalAssistantServiceTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SAMPLE_BLOCK_SIZE = 1024;
+    private static final int REPLY_DURATION_MS = 100;
+    private static final long TIMEOUT_MS = 5000;
+    private static final AtomicInteger sServerCount = new AtomicInteger();
+
+    private LocalAssistantServer mServer;
+    private ManagedChannel mChannel;
+
+    /**
+     * Records the responses of one call.
+     */
+    private static final class Responses implements StreamObserver<ConverseResponse> {
+        final List<ConverseResponse> mResponses = new CopyOnWriteArrayList<>();
+        final CountDownLatch mEndOfUtterance = new CountDownLatch(1);
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile Throwable mError;
+
+        @Override
+        public void onNext(final ConverseResponse value) {
+            mResponses.add(value);
+            if (value.getEventType() == ConverseResponse.EventType.END_OF_UTTERANCE) {
+                mEndOfUtterance.countDown();
+            }
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            mError = t;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            mDone.countDown();
+        }
+
+        int getAudioOutBytes() {
+            int bytes = 0;
+            for (final ConverseResponse response : mResponses) {
+                bytes += response.getAudioOut().getAudioData().size();
+            }
+            return bytes;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mChannel != null) {
+            mChannel.shutdownNow();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void endsTheUtteranceWhileTheRequestStreamIsOpen() throws Exception {
+        start();
+        mServer.getService().setEndOfUtteranceBytes(4 * SAMPLE_BLOCK_SIZE);
+        final Responses responses = new Responses();
+        final StreamObserver<ConverseRequest> requests = converse(responses);
+        for (int i = 0; i < 3; i++) {
+            sendBlock(requests);
+        }
+        assertEquals(1, responses.mEndOfUtterance.getCount());
+        sendBlock(requests);
+        // Without half-closing the request stream.
+        assertTrue(responses.mEndOfUtterance.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(responses.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(responses.mError);
+        assertEquals(ConverseResponse.EventType.END_OF_UTTERANCE,
+                responses.mResponses.get(0).getEventType());
+        assertEquals(2 * SAMPLE_RATE * REPLY_DURATION_MS / 1000, responses.getAudioOutBytes());
+    }
+
+    @Test
+    public void waitsForTheRequestStreamByDefault() throws Exception {
+        start();
+        final Responses responses = new Responses();
+        final StreamObserver<ConverseRequest> requests = converse(responses);
+        for (int i = 0; i < 16; i++) {
+            sendBlock(requests);
+        }
+        assertFalse(responses.mEndOfUtterance.await(100, TimeUnit.MILLISECONDS));
+        requests.onCompleted();
+        assertTrue(responses.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(responses.mError);
+        assertEquals(ConverseResponse.EventType.END_OF_UTTERANCE,
+                responses.mResponses.get(0).getEventType());
+    }
+
+    @Test
+    public void repliesWithTheScriptSet() throws Exception {
+        start();
+        final int replyMs = 2500;
+        mServer.getService().setScript(
+                LocalAssistantService.scriptedReply("tell me a story", SAMPLE_RATE, replyMs));
+        final Responses responses = new Responses();
+        final StreamObserver<ConverseRequest> requests = converse(responses);
+        sendBlock(requests);
+        requests.onCompleted();
+        assertTrue(responses.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("tell me a story",
+                responses.mResponses.get(1).getResult().getSpokenRequestText());
+        assertEquals(2 * SAMPLE_RATE * replyMs / 1000, responses.getAudioOutBytes());
+    }
+
+    private void start() throws Exception {
+        mServer = new LocalAssistantServer("local-assistant-service-test-"
+                + sServerCount.incrementAndGet(), new LocalAssistantService(
+                LocalAssistantService.scriptedReply("what time is it", SAMPLE_RATE,
+                        REPLY_DURATION_MS),
+                new LocalAssistantService.NetworkConditions.Builder().build(), 42));
+        mServer.start();
+        mChannel = mServer.newChannel();
+    }
+
+    private StreamObserver<ConverseRequest> converse(final Responses responses) {
+        final StreamObserver<ConverseRequest> requests =
+                EmbeddedAssistantGrpc.newStub(mChannel).converse(responses);
+        requests.onNext(ConverseRequests.config(SAMPLE_RATE));
+        return requests;
+    }
+
+    private static void sendBlock(final StreamObserver<ConverseRequest> requests) {
+        requests.onNext(ConverseRequests.audioIn(ByteBuffer.allocate(SAMPLE_BLOCK_SIZE)));
+    }
+}
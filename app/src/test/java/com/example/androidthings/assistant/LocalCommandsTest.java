@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LocalCommandsTest {
+    private static final LocalCommands.Action NOTHING = number -> { };
+
+    private final AtomicInteger mVolume = new AtomicInteger(-1);
+    private final LocalCommands mCommands = new LocalCommands.Builder()
+            .add("turn on the light", true, NOTHING)
+            .add("turn off the light", true, NOTHING)
+            .add("turn on the light in the kitchen", false, NOTHING)
+            .add("volume up", true, NOTHING)
+            .add("set the volume to " + LocalCommands.NUMBER, true, mVolume::set)
+            .build();
+
+    @Test
+    public void matchesWholePhrases() {
+        assertPhrase("turn on the light", "turn on the light");
+        assertPhrase("turn off the light", "turn off the light");
+        assertPhrase("volume up", "volume up");
+    }
+
+    @Test
+    public void matchesTheLongerPhraseSpelled() {
+        final LocalCommands.Match match = mCommands.match("turn on the light in the kitchen");
+        assertNotNull(match);
+        assertEquals("turn on the light in the kitchen", match.getPhrase());
+        assertFalse(match.suppressesAudio());
+    }
+
+    @Test
+    public void ignoresCaseAndPunctuation() {
+        assertPhrase("turn on the light", "Turn on the light.");
+        assertPhrase("turn off the light", "  TURN OFF, the light!");
+    }
+
+    @Test
+    public void rejectsPhrasesInsideLongerUtterances() {
+        assertNull(mCommands.match("don't turn on the light"));
+        assertNull(mCommands.match("how do I turn on the light in my car"));
+        assertNull(mCommands.match("turn on the light in the garage"));
+        assertNull(mCommands.match("please volume up now"));
+    }
+
+    @Test
+    public void rejectsPrefixesAndEmptyTranscripts() {
+        assertNull(mCommands.match("turn on the"));
+        assertNull(mCommands.match("set the volume to"));
+        assertNull(mCommands.match(""));
+        assertNull(mCommands.match("?!"));
+    }
+
+    @Test
+    public void passesNumbersToTheAction() throws IOException {
+        mCommands.match("set the volume to 7").run();
+        assertEquals(7, mVolume.get());
+        mCommands.match("Set the volume to five.").run();
+        assertEquals(5, mVolume.get());
+        mCommands.match("set the volume to zero").run();
+        assertEquals(0, mVolume.get());
+    }
+
+    @Test
+    public void rejectsWordsThatAreNotNumbers() {
+        assertNull(mCommands.match("set the volume to eleven"));
+        assertNull(mCommands.match("set the volume to loud"));
+        assertNull(mCommands.match("set the volume to 12345"));
+        assertNull(mCommands.match("set the volume to 5 please"));
+    }
+
+    @Test
+    public void runsTheMatchedAction() throws IOException {
+        final AtomicInteger runs = new AtomicInteger();
+        final LocalCommands commands = new LocalCommands.Builder()
+                .add("volume down", true, number -> {
+                    assertEquals(-1, number);
+                    runs.incrementAndGet();
+                })
+                .build();
+        final LocalCommands.Match match = commands.match("volume down");
+        assertTrue(match.suppressesAudio());
+        match.run();
+        assertEquals(1, runs.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicatePhrases() {
+        new LocalCommands.Builder()
+                .add("volume up", true, NOTHING)
+                .add("Volume up!", false, NOTHING);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyPhrases() {
+        new LocalCommands.Builder().add(" . ", true, NOTHING);
+    }
+
+    private void assertPhrase(final String phrase, final String transcript) {
+        final LocalCommands.Match match = mCommands.match(transcript);
+        assertNotNull(transcript, match);
+        assertEquals(transcript, phrase, match.getPhrase());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static com.example.androidthings.assistant.AudioProcessorBenchmark.BLOCK_SIZE;
+import static com.example.androidthings.assistant.AudioProcessorBenchmark.SAMPLE_RATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class NoiseGateTest {
+    // As the Voice HAT.
+    private static final int OPEN_LEVEL = 300;
+    private static final int CLOSE_LEVEL = 200;
+    private static final int HOLD_BLOCKS = 16;
+    // Q15, -20dB.
+    private static final int FLOOR_GAIN = 3277;
+    // Constant blocks, their level is their value.
+    private static final short SPEECH = 1000;
+    private static final short PAUSE = 100;
+    // Opening ramps in 32 samples, closing in 290.
+    private static final int ATTACK_SAMPLES = 32;
+    private static final int RELEASE_SAMPLES = 290;
+    private static final double MAX_CPU_MS_PER_AUDIO_SECOND = 20;
+
+    private NoiseGate mGate;
+
+    @Before
+    public void setUp() {
+        mGate = new NoiseGate(OPEN_LEVEL, CLOSE_LEVEL, HOLD_BLOCKS, FLOOR_GAIN);
+    }
+
+    @Test
+    public void attenuatesWhileClosed() {
+        final short[] block = process(PAUSE);
+        assertEquals(PAUSE * FLOOR_GAIN >> 15, block[BLOCK_SIZE - 1]);
+    }
+
+    @Test
+    public void opensWithinTheAttack() {
+        process(PAUSE);
+        final short[] block = process(SPEECH);
+        assertTrue("first sample " + block[0], block[0] < SPEECH / 2);
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            assertTrue("ramps up at " + i, block[i] >= block[i - 1]);
+        }
+        for (int i = ATTACK_SAMPLES; i < BLOCK_SIZE; i++) {
+            assertEquals("sample " + i, SPEECH, block[i], 1);
+        }
+    }
+
+    @Test
+    public void holdsOpenThroughShortPauses() {
+        process(SPEECH);
+        for (int b = 0; b < HOLD_BLOCKS; b++) {
+            final short[] block = process(PAUSE);
+            assertEquals("pause block " + b, PAUSE, block[BLOCK_SIZE - 1], 1);
+        }
+        // Speech resumes before the hold ran out, and the count starts over.
+        process(SPEECH);
+        for (int b = 0; b < HOLD_BLOCKS; b++) {
+            assertEquals("pause block " + b, PAUSE, process(PAUSE)[BLOCK_SIZE - 1], 1);
+        }
+    }
+
+    @Test
+    public void closesWithinTheReleaseAfterTheHold() {
+        process(SPEECH);
+        for (int b = 0; b < HOLD_BLOCKS; b++) {
+            process(PAUSE);
+        }
+        final short[] block = process(PAUSE);
+        assertEquals(PAUSE, block[0], 1);
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            assertTrue("ramps down at " + i, block[i] <= block[i - 1]);
+        }
+        for (int i = RELEASE_SAMPLES; i < BLOCK_SIZE; i++) {
+            assertEquals("sample " + i, PAUSE * FLOOR_GAIN >> 15, block[i]);
+        }
+    }
+
+    @Test
+    public void staysOpenBetweenTheCloseAndOpenLevels() {
+        process(SPEECH);
+        final short between = (CLOSE_LEVEL + OPEN_LEVEL) / 2;
+        for (int b = 0; b < 2 * HOLD_BLOCKS; b++) {
+            assertEquals("block " + b, between, process(between)[BLOCK_SIZE - 1], 1);
+        }
+    }
+
+    @Test
+    public void usesAFractionOfTheCpuOfRealTime() {
+        // Speech and pauses alternating every 0.5 sec, the gate opens and closes.
+        final short[] samples = new short[10 * SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (i / (SAMPLE_RATE / 2)) % 2 == 0 ? SPEECH : PAUSE;
+        }
+        final double cpuMs = AudioProcessorBenchmark.cpuMsPerAudioSecond(
+                new NoiseGate(OPEN_LEVEL, CLOSE_LEVEL, HOLD_BLOCKS, FLOOR_GAIN), samples);
+        assertTrue(cpuMs + "ms of cpu per second of audio", cpuMs < MAX_CPU_MS_PER_AUDIO_SECOND);
+    }
+
+    private short[] process(final short value) {
+        final short[] block = new short[BLOCK_SIZE];
+        Arrays.fill(block, value);
+        mGate.process(block, BLOCK_SIZE);
+        return block;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+public class PipelineRecoveryTest {
+    /**
+     * Counts the rebuilds; the recorder may be gone, e.g. during teardown.
+     */
+    private static final class CountingActions implements PipelineRecovery.Actions {
+        boolean mHasRecorder = true;
+        int mCaptureStops;
+        int mCaptureRebuilds;
+        int mNetworkRestarts;
+        int mPlaybackRebuilds;
+
+        @Override
+        public boolean stopCapture() {
+            mCaptureStops++;
+            return mHasRecorder;
+        }
+
+        @Override
+        public void rebuildCapture() {
+            mCaptureRebuilds++;
+        }
+
+        @Override
+        public void restartNetwork() {
+            mNetworkRestarts++;
+        }
+
+        @Override
+        public void rebuildPlayback() {
+            mPlaybackRebuilds++;
+        }
+    }
+
+    private static final TurnStateMachine.Actions NO_TURN_ACTIONS = new TurnStateMachine.Actions() {
+        @Override
+        public void startTurn(final int turnId) {
+        }
+
+        @Override
+        public void stopRecording(final int turnId) {
+        }
+
+        @Override
+        public void cancelTurn(final int turnId, final TurnStateMachine.State state) {
+        }
+    };
+
+    // Stands for the assistant thread, its runnables run when the test drains it.
+    private final Queue<Runnable> mAssistantThread = new ArrayDeque<>();
+    private CountingActions mActions;
+    private TurnStateMachine mTurns;
+    private PipelineRecovery mRecovery;
+
+    @Before
+    public void setUp() {
+        mActions = new CountingActions();
+        mTurns = new TurnStateMachine(NO_TURN_ACTIONS);
+        mRecovery = new PipelineRecovery(mTurns, mAssistantThread::add, mActions);
+    }
+
+    private void runAssistantThread() {
+        while (!mAssistantThread.isEmpty()) {
+            mAssistantThread.poll().run();
+        }
+    }
+
+    @Test
+    public void captureStallRebuildsTheRecorderOnce() {
+        // The assistant thread is still stuck when the watchdog fires again.
+        mRecovery.recoverCapture();
+        mRecovery.recoverCapture();
+        assertEquals(2, mActions.mCaptureStops);
+        runAssistantThread();
+        assertEquals(1, mActions.mCaptureRebuilds);
+
+        // A later stall rebuilds the new recorder.
+        mRecovery.recoverCapture();
+        runAssistantThread();
+        assertEquals(2, mActions.mCaptureRebuilds);
+    }
+
+    @Test
+    public void captureStallWithoutRecorderRebuildsNothing() {
+        mActions.mHasRecorder = false;
+        mRecovery.recoverCapture();
+        runAssistantThread();
+        assertEquals(0, mActions.mCaptureRebuilds);
+    }
+
+    @Test
+    public void networkStallRestartsTheCurrentTurn() {
+        mTurns.onPress();
+        mTurns.onRelease();
+        mRecovery.recoverNetwork();
+        runAssistantThread();
+        assertEquals(1, mActions.mNetworkRestarts);
+    }
+
+    @Test
+    public void networkStallOfASupersededTurnIsIgnored() {
+        mTurns.onPress();
+        mTurns.onRelease();
+        mRecovery.recoverNetwork();
+        // The user pressed again before the recovery reached the assistant thread.
+        mTurns.onPress();
+        runAssistantThread();
+        assertEquals(0, mActions.mNetworkRestarts);
+    }
+
+    @Test
+    public void networkStallOfAFinishedTurnIsIgnored() {
+        mTurns.onPress();
+        mTurns.onRelease();
+        mRecovery.recoverNetwork();
+        mTurns.onTurnFinished(mTurns.getTurnId());
+        runAssistantThread();
+        assertEquals(0, mActions.mNetworkRestarts);
+    }
+
+    @Test
+    public void playbackStallRebuildsTheTrack() {
+        mRecovery.recoverPlayback();
+        runAssistantThread();
+        assertEquals(1, mActions.mPlaybackRebuilds);
+    }
+}
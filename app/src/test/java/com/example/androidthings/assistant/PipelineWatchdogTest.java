@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PipelineWatchdogTest {
+    private static final long CHECK_PERIOD_MS = 10;
+    private static final long STALL_MS = 100;
+    private static final long BLOCK_MS = 5;
+    private static final long TIMEOUT_MS = 5000;
+
+    private ScheduledExecutorService mScheduler;
+    private PipelineWatchdog mWatchdog;
+
+    /**
+     * Recorder whose reads take a block period, or hang until it is stopped once faulty.
+     */
+    private static final class FakeRecorder {
+        private final CountDownLatch mStopped = new CountDownLatch(1);
+        private final boolean mHangs;
+
+        FakeRecorder(final boolean hangs) {
+            mHangs = hangs;
+        }
+
+        // Returns false once stopped, as AudioRecord.read returns an error.
+        boolean read() throws InterruptedException {
+            if (mHangs) {
+                mStopped.await();
+                return false;
+            }
+            return !mStopped.await(BLOCK_MS, TimeUnit.MILLISECONDS);
+        }
+
+        void stop() {
+            mStopped.countDown();
+        }
+    }
+
+    /**
+     * Track whose non-blocking writes accept a block at a time, or nothing once faulty.
+     */
+    private static final class FakeTrack {
+        private final boolean mStuck;
+
+        FakeTrack(final boolean stuck) {
+            mStuck = stuck;
+        }
+
+        int write(final int size) {
+            return mStuck ? 0 : Math.min(size, 320);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mWatchdog = new PipelineWatchdog(mScheduler, CHECK_PERIOD_MS);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void hungCaptureIsUnblockedAndRebuilt() throws Exception {
+        final AtomicReference<FakeRecorder> recorder =
+                new AtomicReference<>(new FakeRecorder(true));
+        final CountDownLatch recovered = new CountDownLatch(1);
+        final PipelineWatchdog.Stage capture = mWatchdog.addStage("capture", STALL_MS, () -> {
+            // Stopping the recorder returns the blocked read.
+            recorder.get().stop();
+            recovered.countDown();
+        });
+        mWatchdog.start();
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger rebuilds = new AtomicInteger();
+        final Thread captureThread = new Thread(() -> {
+            capture.begin();
+            try {
+                while (reads.get() < 10) {
+                    if (recorder.get().read()) {
+                        capture.progress();
+                        reads.incrementAndGet();
+                    } else {
+                        rebuilds.incrementAndGet();
+                        recorder.set(new FakeRecorder(false));
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            capture.end();
+        });
+        captureThread.start();
+        assertTrue(recovered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        captureThread.join(TIMEOUT_MS);
+        assertEquals(10, reads.get());
+        assertEquals(1, rebuilds.get());
+        assertStats("capture: 1 stalls, last recovered in ");
+    }
+
+    @Test
+    public void stuckPlaybackTrackIsReplaced() throws Exception {
+        final AtomicReference<FakeTrack> track = new AtomicReference<>(new FakeTrack(true));
+        final AtomicInteger recoveries = new AtomicInteger();
+        final PipelineWatchdog.Stage playback = mWatchdog.addStage("playback", STALL_MS, () -> {
+            recoveries.incrementAndGet();
+            track.set(new FakeTrack(false));
+        });
+        mWatchdog.start();
+        // One response, written in non-blocking pieces.
+        int remaining = 16000;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        playback.begin();
+        while (remaining > 0 && System.nanoTime() < deadline) {
+            final int count = track.get().write(remaining);
+            if (count > 0) {
+                remaining -= count;
+                playback.progress();
+            } else {
+                Thread.sleep(BLOCK_MS);
+            }
+        }
+        playback.end();
+        assertEquals(0, remaining);
+        assertEquals(1, recoveries.get());
+        assertStats("playback: 1 stalls, last recovered in ");
+    }
+
+    @Test
+    public void inactiveStagesAreNeverRecovered() throws Exception {
+        final AtomicInteger recoveries = new AtomicInteger();
+        final PipelineWatchdog.Stage ended =
+                mWatchdog.addStage("ended", STALL_MS, recoveries::incrementAndGet);
+        mWatchdog.addStage("idle", STALL_MS, recoveries::incrementAndGet);
+        mWatchdog.start();
+        // As a cancelled turn ends its stages, e.g. at barge-in.
+        ended.begin();
+        ended.end();
+        Thread.sleep(3 * STALL_MS);
+        assertEquals(0, recoveries.get());
+        assertStats("ended: 0 stalls, idle: 0 stalls");
+    }
+
+    @Test
+    public void stageStillStuckAfterRecoveryIsRebuiltAgain() throws Exception {
+        final CountDownLatch recoveries = new CountDownLatch(2);
+        final PipelineWatchdog.Stage stage =
+                mWatchdog.addStage("network", STALL_MS, recoveries::countDown);
+        mWatchdog.start();
+        stage.begin();
+        final long start = System.nanoTime();
+        assertTrue(recoveries.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(2 * STALL_MS));
+        stage.end();
+        assertStats("network: 1 stalls, last recovered in ");
+    }
+
+    // Stops the watchdog so that its thread published the stats.
+    private void assertStats(final String expectedPrefix) throws InterruptedException {
+        Thread.sleep(3 * CHECK_PERIOD_MS);
+        mWatchdog.stop();
+        mScheduler.shutdown();
+        assertTrue(mScheduler.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        final String stats = mWatchdog.getStats();
+        assertTrue(stats, stats.startsWith(expectedPrefix));
+    }
+}
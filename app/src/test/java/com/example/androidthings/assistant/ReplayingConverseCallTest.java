@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+
+public class ReplayingConverseCallTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SAMPLE_BLOCK_SIZE = 1024;
+    private static final int REPLY_DURATION_MS = 100;
+    private static final int ROUND_TRIP_TIME_MS = 20;
+    private static final int MAX_BUFFERED_BYTES = SAMPLE_BLOCK_SIZE * 16;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long TIMEOUT_MS = 5000;
+    private static final long FIRST_RESPONSE_TIMEOUT_MS = 300;
+    // Played in real time, it outlasts FIRST_RESPONSE_TIMEOUT_MS.
+    private static final int LONG_REPLY_DURATION_MS = 1000;
+    private static final AtomicInteger sServerCount = new AtomicInteger();
+
+    private final ScheduledExecutorService mScheduler = Executors.newScheduledThreadPool(2);
+    private LocalAssistantServer mServer;
+    private ManagedChannel mChannel;
+
+    /**
+     * Waits for the outcome of one turn.
+     */
+    private static class Turn implements ReplayingConverseCall.Listener {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final AtomicInteger mResponseCount = new AtomicInteger();
+        final AtomicInteger mAudioOutBytes = new AtomicInteger();
+        volatile Status mError;
+        long mFinishNanos;
+        long mLatencyNanos;
+
+        @Override
+        public void onResponse(final ReplayingConverseCall call,
+                               final ConverseCodec.Response response) {
+            mResponseCount.incrementAndGet();
+            if (response.getConverseResponseCase()
+                    == ConverseResponse.ConverseResponseCase.AUDIO_OUT) {
+                mAudioOutBytes.addAndGet(response.getAudioData().remaining());
+                onAudioOut(response.getAudioData().remaining());
+            }
+        }
+
+        void onAudioOut(final int bytes) {
+        }
+
+        @Override
+        public void onError(final ReplayingConverseCall call, final Throwable t) {
+            mError = Status.fromThrowable(t);
+            mLatencyNanos = System.nanoTime() - mFinishNanos;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onCompleted(final ReplayingConverseCall call) {
+            mLatencyNanos = System.nanoTime() - mFinishNanos;
+            mDone.countDown();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mChannel != null) {
+            mChannel.shutdownNow();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void retrySucceedsAfterStreamFailure() throws Exception {
+        start(conditions().setError(Status.Code.UNAVAILABLE, 2, 1f).setMaxFaults(1), 42);
+        final Turn turn = runTurn(MAX_BUFFERED_BYTES, 0, 5);
+        assertNull(turn.mError);
+        assertTrue(turn.mResponseCount.get() > 0);
+        assertEquals(2, mServer.getService().getCallCount());
+    }
+
+    @Test
+    public void replayBufferOverflowDisablesRetry() throws Exception {
+        start(conditions().setError(Status.Code.UNAVAILABLE, 4, 1f).setMaxFaults(1), 42);
+        final Turn turn = runTurn(SAMPLE_BLOCK_SIZE, 0, 5);
+        assertEquals(Status.Code.UNAVAILABLE, turn.mError.getCode());
+        assertEquals(1, mServer.getService().getCallCount());
+    }
+
+    @Test
+    public void hedgedAttemptWinsAndLoserIsCancelled() throws Exception {
+        start(conditions().setStallRate(1f).setMaxFaults(1), 42);
+        final Turn turn = runTurn(MAX_BUFFERED_BYTES, 2 * ROUND_TRIP_TIME_MS, 5);
+        assertNull(turn.mError);
+        assertTrue(turn.mResponseCount.get() > 0);
+        assertEquals(2, mServer.getService().getCallCount());
+        // The cancellation reaches the server asynchronously.
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (mServer.getService().getCancelledCallCount() == 0
+                && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, mServer.getService().getCancelledCallCount());
+    }
+
+    @Test
+    public void successRateAndTailLatencyUnderInjectedFaults() throws Exception {
+        final int turns = 60;
+        start(conditions().setJitterMs(5).setError(Status.Code.UNAVAILABLE, 3, 0.3f), 7);
+        final long[] latenciesNanos = new long[turns];
+        int succeeded = 0;
+        for (int i = 0; i < turns; i++) {
+            final Turn turn = runTurn(MAX_BUFFERED_BYTES, 0, 4);
+            if (turn.mError == null) {
+                latenciesNanos[succeeded++] = turn.mLatencyNanos;
+            } else {
+                assertEquals(Status.Code.UNAVAILABLE, turn.mError.getCode());
+            }
+        }
+        // Each attempt fails with probability 0.3, a turn only after MAX_ATTEMPTS of them.
+        assertTrue("success rate " + succeeded + "/" + turns, succeeded >= turns * 9 / 10);
+        final long[] sorted = Arrays.copyOf(latenciesNanos, succeeded);
+        Arrays.sort(sorted);
+        final long p50Ms = TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length / 2]);
+        final long p99Ms = TimeUnit.NANOSECONDS.toMillis(
+                sorted[(int) Math.ceil(0.99 * sorted.length) - 1]);
+        // A retried turn replays its audio and waits for a second round trip.
+        assertTrue(succeeded + "/" + turns + " ok, latency p50 " + p50Ms + "ms, p99 " + p99Ms
+                + "ms", p99Ms < MAX_ATTEMPTS * (ROUND_TRIP_TIME_MS
+                + REPLY_DURATION_MS + 100));
+    }
+
+    @Test
+    public void longReplyOutlastsTheFirstResponseTimeout() throws Exception {
+        start(conditions(), 42);
+        mServer.getService().setScript(LocalAssistantService.scriptedReply("tell me a story",
+                SAMPLE_RATE, LONG_REPLY_DURATION_MS));
+        final long startNanos = System.nanoTime();
+        final Turn turn = runTurn(new Turn() {
+            @Override
+            void onAudioOut(final int bytes) {
+                // Blocks as the real time playback of the service does, 16bit mono.
+                try {
+                    Thread.sleep(1000L * bytes / (2 * SAMPLE_RATE));
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, MAX_BUFFERED_BYTES, 0, FIRST_RESPONSE_TIMEOUT_MS, 5);
+        assertNull(turn.mError);
+        assertEquals(2 * SAMPLE_RATE * LONG_REPLY_DURATION_MS / 1000, turn.mAudioOutBytes.get());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+                > FIRST_RESPONSE_TIMEOUT_MS);
+    }
+
+    @Test
+    public void stalledTurnFailsAtTheFirstResponseTimeout() throws Exception {
+        start(conditions().setStallRate(1f), 42);
+        final Turn turn = runTurn(new Turn(), MAX_BUFFERED_BYTES, 0, FIRST_RESPONSE_TIMEOUT_MS,
+                5);
+        assertEquals(Status.Code.DEADLINE_EXCEEDED, turn.mError.getCode());
+        assertEquals(0, turn.mResponseCount.get());
+        assertTrue("latency " + TimeUnit.NANOSECONDS.toMillis(turn.mLatencyNanos) + "ms",
+                turn.mLatencyNanos < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS));
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (mServer.getService().getCancelledCallCount() == 0
+                && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, mServer.getService().getCancelledCallCount());
+    }
+
+    private static LocalAssistantService.NetworkConditions.Builder conditions() {
+        return new LocalAssistantService.NetworkConditions.Builder()
+                .setRoundTripTimeMs(ROUND_TRIP_TIME_MS);
+    }
+
+    private void start(final LocalAssistantService.NetworkConditions.Builder conditions,
+                       final long seed) throws Exception {
+        mServer = new LocalAssistantServer("replaying-converse-call-test-"
+                + sServerCount.incrementAndGet(), new LocalAssistantService(
+                LocalAssistantService.scriptedReply("what time is it", SAMPLE_RATE,
+                        REPLY_DURATION_MS),
+                conditions.build(), seed));
+        mServer.start();
+        mChannel = mServer.newChannel();
+    }
+
+    private Turn runTurn(final int maxBufferedBytes, final long hedgeDelayMs, final int blocks)
+            throws Exception {
+        return runTurn(new Turn(), maxBufferedBytes, hedgeDelayMs, 0, blocks);
+    }
+
+    private Turn runTurn(final Turn turn, final int maxBufferedBytes, final long hedgeDelayMs,
+                         final long firstResponseTimeoutMs, final int blocks) throws Exception {
+        final ReplayingConverseCall call = new ReplayingConverseCall(
+                EmbeddedAssistantGrpc.newStub(mChannel), ConverseRequests.config(SAMPLE_RATE),
+                maxBufferedBytes, MAX_ATTEMPTS, hedgeDelayMs, firstResponseTimeoutMs, mScheduler,
+                turn);
+        call.start();
+        final byte[] block = new byte[SAMPLE_BLOCK_SIZE];
+        for (int i = 0; i < blocks; i++) {
+            call.sendAudio(ByteBuffer.wrap(block));
+        }
+        turn.mFinishNanos = System.nanoTime();
+        call.finish();
+        assertTrue("turn timed out", turn.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return turn;
+    }
+}
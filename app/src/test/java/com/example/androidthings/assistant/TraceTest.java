@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class TraceTest {
+    @Test
+    public void recyclesTheRingsOfDeadThreads() throws InterruptedException {
+        final int ringsBefore = Trace.getRingCount();
+        // As the short lived threads of a cached pool, one per turn.
+        for (int turn = 0; turn < 3 * Trace.MAX_RINGS; turn++) {
+            trace("recycled-" + turn, turn).join();
+        }
+        assertTrue(Trace.getRingCount() <= Math.min(ringsBefore + 1, Trace.MAX_RINGS));
+        final String dump = dump();
+        final int last = 3 * Trace.MAX_RINGS - 1;
+        // The last dead thread keeps its events until its ring is reused.
+        assertTrue(dump, dump.contains("recycled-" + last));
+        assertTrue(dump, dump.contains("capture read: " + last + " bytes"));
+        assertFalse(dump, dump.contains("recycled-0 "));
+    }
+
+    @Test
+    public void dropsTheEventsOfThreadsBeyondTheRings() throws InterruptedException {
+        final CountDownLatch traced = new CountDownLatch(Trace.MAX_RINGS + 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i <= Trace.MAX_RINGS; i++) {
+            final int arg = 1000 + i;
+            final Thread thread = new Thread(() -> {
+                Trace.event(Trace.CAPTURE_READ, arg, 0);
+                traced.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "live-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        traced.await();
+        assertEquals(Trace.MAX_RINGS, Trace.getRingCount());
+        final String dump = dump();
+        int recorded = 0;
+        for (int i = 0; i <= Trace.MAX_RINGS; i++) {
+            if (dump.contains("capture read: " + (1000 + i) + " bytes")) {
+                recorded++;
+            }
+        }
+        assertTrue(dump, recorded >= 1 && recorded <= Trace.MAX_RINGS);
+        release.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        // Once the live threads are gone, new threads are traced again.
+        trace("after", 2000).join();
+        assertTrue(dump(), dump().contains("capture read: 2000 bytes"));
+        assertEquals(Trace.MAX_RINGS, Trace.getRingCount());
+    }
+
+    private static Thread trace(final String name, final int arg) {
+        final Thread thread = new Thread(() -> Trace.event(Trace.CAPTURE_READ, arg, 0), name);
+        thread.start();
+        return thread;
+    }
+
+    private static String dump() {
+        final StringWriter text = new StringWriter();
+        Trace.dump(new PrintWriter(text));
+        return text.toString();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.example.androidthings.assistant.TurnStateMachine.State;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class TurnStateMachineTest {
+    private static final int SEQUENCES = 5000;
+    private static final int EVENTS_PER_SEQUENCE = 40;
+
+    /**
+     * Checks the lifecycle of every turn as the service sees it through the actions.
+     */
+    private static final class RecordingActions implements TurnStateMachine.Actions {
+        final Set<Integer> mStarted = new HashSet<>();
+        final Set<Integer> mStopped = new HashSet<>();
+        final Set<Integer> mCancelled = new HashSet<>();
+        // Turn holding the recorder, -1 when none.
+        int mRecording = -1;
+        int mLastStarted;
+
+        @Override
+        public void startTurn(final int turnId) {
+            assertTrue("turn ids increase", turnId > mLastStarted);
+            assertTrue("turn " + turnId + " started twice", mStarted.add(turnId));
+            assertEquals("recorder started twice", -1, mRecording);
+            mLastStarted = turnId;
+            mRecording = turnId;
+        }
+
+        @Override
+        public void stopRecording(final int turnId) {
+            assertTrue(mStarted.contains(turnId));
+            assertFalse("cancelled turn " + turnId + " stopped", mCancelled.contains(turnId));
+            assertTrue("turn " + turnId + " stopped twice", mStopped.add(turnId));
+            assertEquals(turnId, mRecording);
+            mRecording = -1;
+        }
+
+        @Override
+        public void cancelTurn(final int turnId, final State state) {
+            assertTrue(mStarted.contains(turnId));
+            assertTrue("turn " + turnId + " cancelled twice", mCancelled.add(turnId));
+            assertEquals(state == State.RESPONDING, mStopped.contains(turnId));
+            if (state == State.RECORDING) {
+                assertEquals(turnId, mRecording);
+                mRecording = -1;
+            }
+        }
+    }
+
+    private RecordingActions mActions;
+    private TurnStateMachine mTurns;
+
+    @Before
+    public void setUp() {
+        mActions = new RecordingActions();
+        mTurns = new TurnStateMachine(mActions);
+    }
+
+    @Test
+    public void pressReleaseFinish() {
+        mTurns.onPress();
+        assertEquals(State.RECORDING, mTurns.getState());
+        assertTrue(mTurns.isCurrent(1));
+        mTurns.onRelease();
+        assertEquals(State.RESPONDING, mTurns.getState());
+        mTurns.onTurnFinished(1);
+        assertEquals(State.IDLE, mTurns.getState());
+        assertFalse(mTurns.isCurrent(1));
+        assertTrue(mActions.mCancelled.isEmpty());
+    }
+
+    @Test
+    public void rapidPressesSupersedeTheCurrentTurn() {
+        for (int i = 0; i < 100; i++) {
+            mTurns.onPress();
+        }
+        assertEquals(100, mTurns.getTurnId());
+        assertEquals(99, mActions.mCancelled.size());
+        assertTrue(mTurns.isCurrent(100));
+        assertFalse(mTurns.isCurrent(99));
+    }
+
+    @Test
+    public void pressDuringResponseBargesIn() {
+        mTurns.onPress();
+        mTurns.onRelease();
+        mTurns.onPress();
+        assertTrue(mActions.mCancelled.contains(1));
+        assertFalse(mTurns.isCurrent(1));
+        // The superseded call completing late must not end the new turn.
+        mTurns.onTurnFinished(1);
+        assertEquals(State.RECORDING, mTurns.getState());
+        assertTrue(mTurns.isCurrent(2));
+    }
+
+    @Test
+    public void repeatedReleasesStopOnce() {
+        mTurns.onRelease();
+        mTurns.onPress();
+        mTurns.onRelease();
+        mTurns.onRelease();
+        assertEquals(1, mActions.mStopped.size());
+    }
+
+    @Test
+    public void failureWhileRecordingReleasesTheRecorder() {
+        mTurns.onPress();
+        mTurns.onTurnFinished(1);
+        assertEquals(State.IDLE, mTurns.getState());
+        assertTrue(mActions.mCancelled.contains(1));
+        assertEquals(-1, mActions.mRecording);
+    }
+
+    @Test
+    public void randomEventSequences() {
+        final Random random = new Random(42);
+        for (int sequence = 0; sequence < SEQUENCES; sequence++) {
+            setUp();
+            for (int event = 0; event < EVENTS_PER_SEQUENCE; event++) {
+                final int current = mTurns.getTurnId();
+                switch (random.nextInt(5)) {
+                    case 0:
+                        mTurns.onPress();
+                        break;
+                    case 1:
+                        mTurns.onRelease();
+                        break;
+                    case 2:
+                        mTurns.onTurnFinished(current);
+                        break;
+                    case 3:
+                        // Completion of a random, possibly superseded, call.
+                        mTurns.onTurnFinished(random.nextInt(current + 1));
+                        break;
+                    default:
+                        mTurns.cancel();
+                        break;
+                }
+                assertConsistent();
+            }
+            mTurns.cancel();
+            assertEquals(State.IDLE, mTurns.getState());
+            assertEquals(-1, mActions.mRecording);
+        }
+    }
+
+    private void assertConsistent() {
+        final State state = mTurns.getState();
+        final int turnId = mTurns.getTurnId();
+        assertEquals(state == State.RECORDING ? turnId : -1, mActions.mRecording);
+        for (int id = 1; id < turnId; id++) {
+            assertFalse("superseded turn " + id + " is current", mTurns.isCurrent(id));
+        }
+        if (state != State.IDLE) {
+            assertTrue(mTurns.isCurrent(turnId));
+            assertFalse(mActions.mCancelled.contains(turnId));
+            assertEquals(state == State.RESPONDING, mActions.mStopped.contains(turnId));
+        }
+    }
+}